@@ -1,6 +1,7 @@
 package dev.hintsystem.playerrelay;
 
 import dev.hintsystem.playerrelay.networking.NetworkProtocol;
+import dev.hintsystem.playerrelay.networking.P2PNetworkManager;
 import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
 import dev.hintsystem.playerrelay.payload.player.*;
 
@@ -12,53 +13,120 @@ import net.minecraft.util.Formatting;
 
 import org.jetbrains.annotations.Nullable;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class ClientCore {
     public static final float tickRate = 20;
     public static final int msPerTick = Math.round(1000 / tickRate);
 
+    /** Numbers every player update sent, so receivers can reject updates that arrive out of order */
+    private static final AtomicInteger updateSequence = new AtomicInteger(0);
+
     private static long lastSentUdpTime = 0;
     private static long lastSentTcpTime = 0;
 
+    /** Position updates are sent as delta to the last keyframe, a new keyframe is sent at least this often while moving */
+    public static final int POSITION_KEYFRAME_INTERVAL_MS = 2000;
+
     private static PlayerInfoPayload clientInfo;
     private static PlayerInfoPayload pendingTcpPayload = null;
 
+    private static int positionKeyframeId = 0;
+    private static int[] positionKeyframe = null;
+    private static long lastPositionKeyframeTime = 0;
+    private static volatile boolean positionKeyframeRequested = false;
+    private static boolean positionMoving = false;
+
+    /** Components are sent as changed fields only, all fields are sent at least this often */
+    public static final int FULL_STATE_INTERVAL_MS = 10_000;
+    private static long lastFullStateTime = 0;
+    private static volatile boolean fullStateRequested = false;
+
+    // Components are only rebuilt when PlayerStateTracker saw them change, and all of them at the full state interval in case a change had no hook
+    private static long lastFullScanTime = 0;
+    private static int lastNameColor = 0;
+
     @Nullable
     public static PlayerInfoPayload updateClientInfo() {
         MinecraftClient client = MinecraftClient.getInstance();
 
-        clientInfo = new PlayerInfoPayload(client.getSession().getUuidOrNull());
-        updateInfoPayloadGeneralData(clientInfo, client.player);
+        clientInfo = new PlayerInfoPayload(client.getSession().getUuidOrNull()).setSequence(nextUpdateSequence());
+        updateInfoPayloadGeneralData(clientInfo, client.player, PlayerStateTracker.ALL);
         if (client.player != null) updateInfoPayloadPosData(clientInfo, client.player);
 
         return clientInfo;
     }
 
+    /** The local player's state as last sent, or null before the first update */
+    @Nullable
+    public static PlayerInfoPayload getClientInfo() { return clientInfo; }
+
     public static void onTickEnd(MinecraftClient client) {
         EnderChestTracker.tick();
+        applyInboundEvents();
 
-        if (!PlayerRelay.isNetworkActive()) return;
+        if (!PlayerRelay.isNetworkActive() || PlayerRelay.getNetworkManager().isRelayOnly()) return;
         if (clientInfo == null) { updateClientInfo(); return; }
 
+        PlayerRelay.getNetworkManager().refreshComponentSubscription();
+        EntityVisibilityTracker.tick(client);
+
         long now = System.currentTimeMillis();
+        PositionSendRate.tick(client.player);
 
-        if (client.player != null && now - lastSentUdpTime > PlayerRelay.config.udpSendIntervalMs) {
+        PlayerPositionData position = (client.player != null)
+            ? new PlayerPositionData(client.player).setVelocity(PositionSendRate.getVelocity()) : null;
+        if (position != null && now - lastSentUdpTime > PositionSendRate.getIntervalMs(position, positionMoving)) {
             PlayerInfoPayload posPayload = new PlayerInfoPayload(clientInfo.playerId);
 
-            if (updateInfoPayloadPosData(posPayload, client.player)) {
+            // Receivers extrapolate the last position sent, so it only counts as moved if they would show it off by too much
+            boolean moved = updateComponent(posPayload, position);
+            // The position the player stops at is a keyframe, so peers whose deltas were lost or held back by the host still see it
+            boolean stopped = positionMoving && !position.isMoving();
+            if (moved || stopped) positionMoving = position.isMoving();
+
+            if (stopped) {
+                posPayload.setComponent(position);
+                positionKeyframeRequested = true;
+            }
+
+            if (moved || stopped) {
                 lastSentUdpTime = now;
-                clientInfo.merge(posPayload);
-                PlayerRelay.getNetworkManager().broadcastMessage(posPayload.message(NetworkProtocol.UDP));
+                clientInfo.merge(posPayload.setSequence(nextUpdateSequence()));
+
+                // Keyframes must reach every peer, so they are sent reliably while the deltas in between use plain UDP
+                boolean keyframe = preparePositionEncoding(position, now);
+                P2PNetworkManager networkManager = PlayerRelay.getNetworkManager();
+                networkManager.broadcastMessage(posPayload.message(keyframe ? NetworkProtocol.RELIABLE_UDP : NetworkProtocol.UDP));
+                if (networkManager.isHost()) networkManager.getInterestManager().updatePosition(clientInfo);
             }
         }
 
         if (now - lastSentTcpTime > PlayerRelay.config.tcpSendIntervalMs) {
             if (pendingTcpPayload == null) pendingTcpPayload = new PlayerInfoPayload(clientInfo.playerId);
 
-            boolean updated = updateInfoPayloadGeneralData(pendingTcpPayload, client.player);
+            boolean updated = updateInfoPayloadGeneralData(pendingTcpPayload, client.player, takeDirtyComponents(client.player, now));
             updated |= updateInfoPayloadClientData(pendingTcpPayload);
 
+            // Send only changed fields, except periodically so peers that missed an update converge, even while nothing changes
+            boolean fullState = fullStateRequested || now - lastFullStateTime >= FULL_STATE_INTERVAL_MS;
+            if (fullState) {
+                pendingTcpPayload.fillMissingFrom(clientInfo, 1 << PlayerInfoPayload.getRegistryIndex(PlayerPositionData.class));
+                updated = true;
+            }
+
             if (updated) {
                 lastSentTcpTime = now;
+
+                if (fullState) {
+                    fullStateRequested = false;
+                    lastFullStateTime = now;
+                } else {
+                    pendingTcpPayload.encodeAsDelta(clientInfo);
+                }
+
+                pendingTcpPayload.setSequence(nextUpdateSequence());
                 clientInfo.merge(pendingTcpPayload);
                 PlayerRelay.getNetworkManager().broadcastMessage(pendingTcpPayload.message());
                 pendingTcpPayload = null;
@@ -66,6 +134,70 @@ public class ClientCore {
         }
     }
 
+    /**
+     * Applies updates received since the last tick, bounded so a burst of traffic cannot stall the game thread,
+     * then keeps live inventory views in sync
+     */
+    private static void applyInboundEvents() {
+        P2PNetworkManager networkManager = PlayerRelay.getNetworkManager();
+        if (networkManager == null) return;
+
+        networkManager.getMessageHandler().getEventQueue().drain(PlayerRelay.config.inboundEventsPerTick,
+            TimeUnit.MILLISECONDS.toNanos(PlayerRelay.config.inboundTickBudgetMs));
+        networkManager.getMessageHandler().getInventorySubscriptions().tick(MinecraftClient.getInstance().player);
+    }
+
+    /** Chooses between a new keyframe and a delta to the current one, returns true for a keyframe */
+    private static boolean preparePositionEncoding(PlayerPositionData position, long now) {
+        int[] coords = position.getQuantizedCoords();
+
+        if (positionKeyframe == null || positionKeyframeRequested || now - lastPositionKeyframeTime > POSITION_KEYFRAME_INTERVAL_MS
+            || !PlayerPositionData.fitsDelta(coords, positionKeyframe)) {
+            positionKeyframeId = positionKeyframeId % PlayerPositionData.MAX_KEYFRAME_ID + 1;
+            positionKeyframe = coords;
+            lastPositionKeyframeTime = now;
+            positionKeyframeRequested = false;
+
+            position.setKeyframe(positionKeyframeId);
+            return true;
+        }
+
+        position.setDeltaBase(positionKeyframeId, positionKeyframe);
+        return false;
+    }
+
+    private static int takeDirtyComponents(@Nullable ClientPlayerEntity player, long now) {
+        int dirty = PlayerStateTracker.takeDirty(player);
+
+        int nameColor = PlayerRelay.config.displayNameColor.getRGB();
+        if (nameColor != lastNameColor) {
+            lastNameColor = nameColor;
+            dirty |= PlayerStateTracker.BASIC;
+        }
+
+        if (now - lastFullScanTime >= FULL_STATE_INTERVAL_MS) {
+            lastFullScanTime = now;
+            dirty = PlayerStateTracker.ALL;
+        }
+        return dirty;
+    }
+
+    private static int nextUpdateSequence() {
+        int sequence = updateSequence.incrementAndGet();
+        // 0 means unknown to receivers
+        if (sequence == 0) sequence = updateSequence.incrementAndGet();
+        return sequence;
+    }
+
+    /**
+     * Makes the next position update a keyframe and the next general update complete,
+     * so a peer that just joined can decode the deltas after them
+     */
+    public static void requestFullUpdate() {
+        positionKeyframeRequested = true;
+        fullStateRequested = true;
+    }
+
     private static boolean updateInfoPayloadClientData(PlayerInfoPayload info) {
         boolean isAfk = PlayerRelay.isClientAfk();
         boolean hasChanged = clientInfo.isAfk() != isAfk;
@@ -78,18 +210,22 @@ public class ClientCore {
         return updateComponent(info, new PlayerPositionData(player));
     }
 
-    private static boolean updateInfoPayloadGeneralData(PlayerInfoPayload info, @Nullable ClientPlayerEntity player) {
+    /** Rebuilds the dirty components, a mask of {@link PlayerStateTracker} bits, and sets those that changed */
+    private static boolean updateInfoPayloadGeneralData(PlayerInfoPayload info, @Nullable ClientPlayerEntity player, int dirty) {
         MinecraftClient client = MinecraftClient.getInstance();
-        String playerName = (player != null) ? player.getName().getString() : client.getSession().getUsername();
+        boolean hasChanged = false;
 
         // Use bitwise OR to prevent short-circuit
-        boolean hasChanged = updateComponent(info, new PlayerBasicData(playerName, PlayerRelay.config.displayNameColor));
-        hasChanged |= updateComponent(info, new PlayerWorldData(player));
+        if ((dirty & PlayerStateTracker.BASIC) != 0) {
+            String playerName = (player != null) ? player.getName().getString() : client.getSession().getUsername();
+            hasChanged |= updateComponent(info, new PlayerBasicData(playerName, PlayerRelay.config.displayNameColor));
+        }
+        if ((dirty & PlayerStateTracker.WORLD) != 0) hasChanged |= updateComponent(info, new PlayerWorldData(player));
 
         if (player != null) {
-            hasChanged |= updateComponent(info, new PlayerStatsData(player));
-            hasChanged |= updateComponent(info, new PlayerEquipmentData(player));
-            hasChanged |= updateComponent(info, new PlayerStatusEffectsData(player));
+            if ((dirty & PlayerStateTracker.STATS) != 0) hasChanged |= updateComponent(info, new PlayerStatsData(player));
+            if ((dirty & PlayerStateTracker.EQUIPMENT) != 0) hasChanged |= updateComponent(info, new PlayerEquipmentData(player));
+            if ((dirty & PlayerStateTracker.STATUS_EFFECTS) != 0) hasChanged |= updateComponent(info, new PlayerStatusEffectsData(player));
         }
 
         return hasChanged;
@@ -112,6 +248,8 @@ public class ClientCore {
     }
 
     public static void onPlayerConnected(PlayerInfoPayload playerInfo) {
+        requestFullUpdate();
+
         sendClientMessage(Text.literal("✔ ")
             .setStyle(Style.EMPTY.withColor(Formatting.GREEN).withBold(true))
             .append(playerInfo.getName())
@@ -0,0 +1,66 @@
+package dev.hintsystem.playerrelay;
+
+import dev.hintsystem.playerrelay.networking.P2PNetworkManager;
+import dev.hintsystem.playerrelay.networking.PeerConnection;
+import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
+import dev.hintsystem.playerrelay.payload.VisiblePlayersPayload;
+import dev.hintsystem.playerrelay.payload.player.PlayerPositionData;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.AbstractClientPlayerEntity;
+import net.minecraft.client.network.ClientPlayNetworkHandler;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Finds the relay players the game server already streams to this client as entities and reports them to the host,
+ * which stops relaying their movement here until they leave entity tracking range.
+ * <p>
+ * While a player is in sight, its relay position is taken from the entity every tick, so the player list and map
+ * trackers stay exact without any relay traffic.
+ */
+public class EntityVisibilityTracker {
+    /** Changes are reported at most this often, so players at the edge of tracking range cannot flood the host */
+    public static final long REPORT_INTERVAL_MS = 250;
+
+    private static volatile Set<UUID> reportedPlayers = Set.of();
+    private static volatile long lastReportTime = 0;
+
+    public static void tick(MinecraftClient client) {
+        P2PNetworkManager networkManager = PlayerRelay.getNetworkManager();
+        ClientPlayNetworkHandler networkHandler = client.getNetworkHandler();
+
+        Set<UUID> visible = new HashSet<>();
+        if (client.world != null && networkHandler != null) {
+            for (AbstractClientPlayerEntity entity : client.world.getPlayers()) {
+                if (entity == client.player || !networkHandler.getPlayerUuids().contains(entity.getUuid())) continue;
+
+                PlayerInfoPayload info = networkManager.connectedPlayers.get(entity.getUuid());
+                if (info == null) continue;
+
+                visible.add(entity.getUuid());
+                synchronized (info) { info.setComponent(new PlayerPositionData(entity)); }
+            }
+        }
+
+        // The host relays to everyone itself, only its peers report what they see
+        if (networkManager.isHost() || visible.equals(reportedPlayers)) return;
+
+        long now = System.currentTimeMillis();
+        if (now - lastReportTime < REPORT_INTERVAL_MS) return;
+
+        reportedPlayers = Set.copyOf(visible);
+        lastReportTime = now;
+
+        VisiblePlayersPayload payload = new VisiblePlayersPayload(reportedPlayers);
+        for (PeerConnection peer : networkManager.getConnectedPeers()) peer.sendMessage(payload.message());
+    }
+
+    /** Forgets what was reported, a new host is told again on the next tick */
+    public static void reset() {
+        reportedPlayers = Set.of();
+        lastReportTime = 0;
+    }
+}
@@ -28,7 +28,7 @@ import java.util.UUID;
 
 public class PlayerRelay implements ClientModInitializer {
     public static final String MOD_ID = "player-relay";
-    public static final int NETWORK_VERSION = 4;
+    public static final int NETWORK_VERSION = 5;
     public static final String VERSION;
     public static final Logger LOGGER = LoggerFactory.getLogger(PlayerRelay.class);
 
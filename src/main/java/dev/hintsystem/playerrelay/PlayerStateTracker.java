@@ -0,0 +1,42 @@
+package dev.hintsystem.playerrelay;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayerEntity;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Collects which parts of the local player's state changed since they were last sent, so {@link ClientCore} only
+ * rebuilds and compares those components.
+ * <p>
+ * The bits are set by mixins on the packet handlers that update the local player and on its inventory, all of which
+ * run on the client thread. A different player entity, after joining or respawning, marks everything dirty.
+ */
+public class PlayerStateTracker {
+    public static final int BASIC = 1, WORLD = 1 << 1, STATS = 1 << 2, EQUIPMENT = 1 << 3, STATUS_EFFECTS = 1 << 4;
+    public static final int ALL = (1 << 5) - 1;
+
+    private static int dirtyComponents = ALL;
+    @Nullable
+    private static ClientPlayerEntity trackedPlayer = null;
+
+    public static void markDirty(int components) { dirtyComponents |= components; }
+
+    /** Marks the components dirty if the entity is the local player */
+    public static void markDirty(int components, int entityId) {
+        ClientPlayerEntity player = MinecraftClient.getInstance().player;
+        if (player != null && player.getId() == entityId) dirtyComponents |= components;
+    }
+
+    /** Returns the components changed since the last call and clears them */
+    public static int takeDirty(@Nullable ClientPlayerEntity player) {
+        if (player != trackedPlayer) {
+            trackedPlayer = player;
+            dirtyComponents = ALL;
+        }
+
+        int dirty = dirtyComponents;
+        dirtyComponents = 0;
+        return dirty;
+    }
+}
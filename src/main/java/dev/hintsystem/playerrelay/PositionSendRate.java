@@ -0,0 +1,61 @@
+package dev.hintsystem.playerrelay;
+
+import dev.hintsystem.playerrelay.payload.player.PlayerPositionData;
+
+import net.minecraft.client.network.ClientPlayerEntity;
+import net.minecraft.entity.EntityPose;
+import net.minecraft.util.math.Vec3d;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Picks how often the local player's position is checked and sent, so bandwidth goes to movement peers can see.
+ * <p>
+ * Players gliding or moving faster than {@value #FAST_SPEED} blocks per second, such as on horses or in minecarts, send
+ * twice as often as {@link dev.hintsystem.playerrelay.config.Config#udpSendIntervalMs}. Players standing still or AFK are
+ * only checked every {@value #HEARTBEAT_INTERVAL_MS} ms, so looking around costs little. The speed is measured every tick, so a player starting to move is
+ * sent at the normal rate right away.
+ */
+public class PositionSendRate {
+    /** Blocks per second, faster than sprinting */
+    public static final double FAST_SPEED = 8.0;
+    /** Blocks per second below which a player counts as standing still */
+    public static final double STATIONARY_SPEED = 0.1;
+    public static final int MIN_INTERVAL_MS = 50;
+    public static final int HEARTBEAT_INTERVAL_MS = 2000;
+
+    @Nullable
+    private static Vec3d lastTickPos = null;
+    /** Blocks per second, smoothed over a few ticks so a single lag spike does not switch rates */
+    private static Vec3d velocity = Vec3d.ZERO;
+    private static double speed = 0;
+
+    public static void tick(@Nullable ClientPlayerEntity player) {
+        if (player == null) {
+            lastTickPos = null;
+            velocity = Vec3d.ZERO;
+            speed = 0;
+            return;
+        }
+
+        Vec3d pos = player.getPos();
+        Vec3d tickVelocity = (lastTickPos != null) ? pos.subtract(lastTickPos).multiply(ClientCore.tickRate) : Vec3d.ZERO;
+        velocity = velocity.multiply(0.75).add(tickVelocity.multiply(0.25));
+        speed = velocity.length();
+        lastTickPos = pos;
+    }
+
+    /** @param moving whether the last position sent was moving, the position the player stops at is always sent at the normal rate */
+    public static int getIntervalMs(PlayerPositionData position, boolean moving) {
+        int interval = PlayerRelay.config.udpSendIntervalMs;
+
+        if (!moving && (PlayerRelay.isClientAfk() || speed < STATIONARY_SPEED)) return Math.max(interval, HEARTBEAT_INTERVAL_MS);
+        if (position.pose == EntityPose.GLIDING || speed >= FAST_SPEED) return Math.max(interval / 2, MIN_INTERVAL_MS);
+        return interval;
+    }
+
+    public static double getSpeed() { return speed; }
+
+    /** The velocity sent with the position, zero while standing still so receivers do not drift */
+    public static Vec3d getVelocity() { return (speed < STATIONARY_SPEED) ? Vec3d.ZERO : velocity; }
+}
@@ -3,6 +3,7 @@ package dev.hintsystem.playerrelay.command;
 import dev.hintsystem.playerrelay.ClientCore;
 import dev.hintsystem.playerrelay.EnderChestTracker;
 import dev.hintsystem.playerrelay.PlayerRelay;
+import dev.hintsystem.playerrelay.gui.RemoteContainerScreen;
 import dev.hintsystem.playerrelay.gui.RemoteEnderChestScreen;
 import dev.hintsystem.playerrelay.gui.RemoteInventoryScreen;
 import dev.hintsystem.playerrelay.networking.P2PNetworkManager;
@@ -173,13 +174,16 @@ public class PlayerRelayCommands {
 
                     context.getSource().sendFeedback(Text.literal("Requesting " + type + " for " + player.getName() + "..."));
 
-                    networkManager.getMessageHandler()
-                        .requestInventory(player.playerId, isEnderChest)
+                    networkManager.getMessageHandler().getInventorySubscriptions()
+                        .subscribe(player.playerId, isEnderChest)
                         .orTimeout(5, TimeUnit.SECONDS)
-                        .thenAccept(inventory -> client.send(() -> {
+                        .thenAccept(subscription -> client.send(() -> {
                             try {
-                                client.setScreen(isEnderChest ? new RemoteEnderChestScreen(inventory) : new RemoteInventoryScreen(inventory));
+                                PlayerInventoryPayload inventory = subscription.getInventory();
+                                RemoteContainerScreen screen = isEnderChest ? new RemoteEnderChestScreen(inventory) : new RemoteInventoryScreen(inventory);
+                                client.setScreen(screen.withSubscription(subscription));
                             } catch (Exception e) {
+                                subscription.close();
                                 context.getSource().sendError(Text.literal("Failed to open " + type + ": " + e.getMessage()));
                             }
                         }))
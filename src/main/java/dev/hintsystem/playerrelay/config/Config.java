@@ -4,6 +4,7 @@ import dev.hintsystem.playerrelay.PlayerRelay;
 import dev.hintsystem.playerrelay.gui.AnchorPoint;
 import dev.hintsystem.playerrelay.gui.PlayerListEntry;
 import dev.hintsystem.playerrelay.networking.P2PNetworkManager;
+import dev.hintsystem.playerrelay.networking.transport.TransportType;
 import dev.hintsystem.playerrelay.payload.player.PlayerBasicData;
 
 import dev.isxander.yacl3.api.*;
@@ -40,6 +41,10 @@ public class Config {
     public boolean UPnPEnabled = true;
     public String connectionAddress = "external";
     public int defaultHostingPort = P2PNetworkManager.DEFAULT_PORT;
+    public boolean relayOnly = false;
+    public boolean hostSnapshots = true;
+    public int interestRadius = 256;
+    public int farUpdateIntervalMs = 1000;
 
     public String autoConnectAddress = "";
     public Color displayNameColor = PlayerBasicData.DEFAULT_NAME_COLOR;
@@ -59,9 +64,17 @@ public class Config {
 
     public boolean showPingsFromOtherServers = false;
 
+    public TransportType transportType = TransportType.BLOCKING;
     public int peerConnectionTimeout = 6000;
+    public int outboundQueueCapacity = 512;
+    public int inboundEventsPerTick = 256;
+    public int inboundTickBudgetMs = 4;
     public int tcpSendIntervalMs = 500;
     public int udpSendIntervalMs = 100;
+    public int udpBatchWindowMs = 10;
+    public boolean reliableUdp = true;
+    public int compressionThreshold = 256;
+    public int snapshotIntervalMs = 100;
     public int udpPingIntervalMs = 5000;
     public int udpPingTimeoutMs = 2000;
     public int maxFailedUdpPings = 3;
@@ -131,6 +144,47 @@ public class Config {
                             .formatValue(val -> Text.literal(String.format("%d", val)))
                             .range(1, 65535))
                         .build())
+                    .option(Option.<Boolean>createBuilder()
+                        .name(Text.literal("Relay Only"))
+                        .description(OptionDescription.of(Text.literal("Host as a pure relay without joining the group yourself.\n\n")
+                            .append(Text.literal("• ").formatted(Formatting.GRAY))
+                            .append(Text.literal("Enabled").formatted(Formatting.GREEN, Formatting.BOLD))
+                            .append(Text.literal(" → Your player is not shared, and pings, inventories and chat are forwarded without being decoded\n"))
+                            .append(Text.literal("• ").formatted(Formatting.GRAY))
+                            .append(Text.literal("Disabled").formatted(Formatting.RED))
+                            .append(Text.literal(" → You take part in the group like any other peer"))
+                        ))
+                        .binding(DEFAULTS.relayOnly, () -> relayOnly, val -> relayOnly = val)
+                        .controller(TickBoxControllerBuilder::create)
+                        .build())
+                    .option(Option.<Boolean>createBuilder()
+                        .name(Text.literal("World Snapshots"))
+                        .description(OptionDescription.of(Text.literal("Combine player movement into one update per peer instead of forwarding each player's movement separately.\n\n")
+                            .append(Text.literal("• ").formatted(Formatting.GRAY))
+                            .append(Text.literal("Enabled").formatted(Formatting.GREEN, Formatting.BOLD))
+                            .append(Text.literal(" → Much less traffic for large groups\n"))
+                            .append(Text.literal("• ").formatted(Formatting.GRAY))
+                            .append(Text.literal("Disabled").formatted(Formatting.RED))
+                            .append(Text.literal(" → Every movement update is forwarded as it arrives"))
+                        ))
+                        .binding(DEFAULTS.hostSnapshots, () -> hostSnapshots, val -> hostSnapshots = val)
+                        .controller(TickBoxControllerBuilder::create)
+                        .build())
+                    .option(Option.<Integer>createBuilder()
+                        .name(Text.literal("Interest Radius"))
+                        .description(OptionDescription.of(Text.literal("Distance in blocks within which peers receive each other's movement at the full rate. Players further away or in another dimension are updated every Far Update Interval, less often the further away they are.\n\n")
+                            .append(Text.literal("Set to 0 to send all movement at the full rate."))))
+                        .binding(DEFAULTS.interestRadius, () -> interestRadius, val -> interestRadius = val)
+                        .controller(opt -> IntegerFieldControllerBuilder.create(opt)
+                            .range(0, 100_000))
+                        .build())
+                    .option(Option.<Integer>createBuilder()
+                        .name(Text.literal("Far Update Interval"))
+                        .description(OptionDescription.of(Text.literal("Milliseconds between movement updates of players just outside a peer's interest radius. Players further away get up to 4 times fewer updates.")))
+                        .binding(DEFAULTS.farUpdateIntervalMs, () -> farUpdateIntervalMs, val -> farUpdateIntervalMs = val)
+                        .controller(opt -> IntegerFieldControllerBuilder.create(opt)
+                            .range(100, 60_000))
+                        .build())
                     .build())
 
                 .group(OptionGroup.createBuilder()
@@ -268,6 +322,20 @@ public class Config {
             .category(ConfigCategory.createBuilder()
                 .name(Text.literal("Advanced"))
 
+                .option(Option.<TransportType>createBuilder()
+                    .name(Text.literal("Transport Engine"))
+                    .description(OptionDescription.of(Text.literal("How network sockets are serviced. Applies the next time you host or connect.\n\n")
+                        .append(Text.literal("• ").formatted(Formatting.GRAY))
+                        .append(Text.literal("BLOCKING").formatted(Formatting.YELLOW, Formatting.BOLD))
+                        .append(Text.literal(" → One thread per peer (default)\n"))
+                        .append(Text.literal("• ").formatted(Formatting.GRAY))
+                        .append(Text.literal("NIO").formatted(Formatting.GREEN, Formatting.BOLD))
+                        .append(Text.literal(" → All peers share a single network thread, recommended when hosting large groups"))
+                    ))
+                    .binding(DEFAULTS.transportType, () -> transportType, val -> transportType = val)
+                    .controller(opt -> EnumControllerBuilder.create(opt)
+                        .enumClass(TransportType.class))
+                    .build())
                 .option(Option.<Integer>createBuilder()
                     .name(Text.literal("Connection Timeout"))
                     .description(OptionDescription.of(Text.literal(
@@ -277,6 +345,41 @@ public class Config {
                     .controller(opt -> IntegerFieldControllerBuilder.create(opt)
                         .range(50, 100_000))
                     .build())
+                .option(Option.<Integer>createBuilder()
+                    .name(Text.literal("Outbound Queue Size"))
+                    .description(OptionDescription.of(Text.literal(
+                        """
+                        Maximum number of messages waiting to be sent to a single peer.
+                        
+                        When full, position updates are dropped oldest-first and a peer that cannot keep up with other messages is disconnected.
+                        """
+                    )))
+                    .binding(DEFAULTS.outboundQueueCapacity, () -> outboundQueueCapacity, val -> outboundQueueCapacity = val)
+                    .controller(opt -> IntegerFieldControllerBuilder.create(opt)
+                        .range(16, 65_536))
+                    .build())
+                .option(Option.<Integer>createBuilder()
+                    .name(Text.literal("Inbound Updates Per Tick"))
+                    .description(OptionDescription.of(Text.literal(
+                        """
+                        Maximum number of received updates applied per game tick.
+                        
+                        Updates beyond this are applied on the next tick, several updates for the same player are combined while waiting.
+                        """
+                    )))
+                    .binding(DEFAULTS.inboundEventsPerTick, () -> inboundEventsPerTick, val -> inboundEventsPerTick = val)
+                    .controller(opt -> IntegerFieldControllerBuilder.create(opt)
+                        .range(1, 10_000))
+                    .build())
+                .option(Option.<Integer>createBuilder()
+                    .name(Text.literal("Inbound Tick Budget"))
+                    .description(OptionDescription.of(Text.literal(
+                        "Maximum time (in ms) per game tick spent applying received updates."
+                    )))
+                    .binding(DEFAULTS.inboundTickBudgetMs, () -> inboundTickBudgetMs, val -> inboundTickBudgetMs = val)
+                    .controller(opt -> IntegerFieldControllerBuilder.create(opt)
+                        .range(1, 50))
+                    .build())
                 .option(Option.<Integer>createBuilder()
                     .name(Text.literal("TCP Send Interval"))
                     .description(OptionDescription.of(Text.literal(
@@ -293,12 +396,59 @@ public class Config {
                 .option(Option.<Integer>createBuilder()
                     .name(Text.literal("UDP Send Interval"))
                     .description(OptionDescription.of(Text.literal(
-                        "Delay (in ms) between sending player updates via UDP."
+                        "Delay (in ms) between sending player updates via UDP. Fast or gliding players send twice as often, players standing still or AFK send head turns every 2 seconds."
                     )))
                     .binding(DEFAULTS.udpSendIntervalMs, () -> udpSendIntervalMs, val -> udpSendIntervalMs = val)
                     .controller(opt -> IntegerFieldControllerBuilder.create(opt)
                         .range(10, 10_000))
                     .build())
+                .option(Option.<Integer>createBuilder()
+                    .name(Text.literal("UDP Batch Window"))
+                    .description(OptionDescription.of(Text.literal(
+                        """
+                        Time (in ms) UDP messages to the same peer are collected before being sent together in one packet.
+                        
+                        Larger values = fewer packets when hosting many players, but slightly delayed updates. 0 disables batching.
+                        """
+                    )))
+                    .binding(DEFAULTS.udpBatchWindowMs, () -> udpBatchWindowMs, val -> udpBatchWindowMs = val)
+                    .controller(opt -> IntegerFieldControllerBuilder.create(opt)
+                        .range(0, 1000))
+                    .build())
+                .option(Option.<Boolean>createBuilder()
+                    .name(Text.literal("Reliable UDP"))
+                    .description(OptionDescription.of(Text.literal(
+                        """
+                        Send player updates, inventories and pings through acknowledged UDP streams instead of TCP.
+                        
+                        A lost packet then only delays its own stream, e.g. a large inventory never holds back a ping. Falls back to TCP while UDP is unavailable.
+                        """
+                    )))
+                    .binding(DEFAULTS.reliableUdp, () -> reliableUdp, val -> reliableUdp = val)
+                    .controller(TickBoxControllerBuilder::create)
+                    .build())
+                .option(Option.<Integer>createBuilder()
+                    .name(Text.literal("Compression Threshold"))
+                    .description(OptionDescription.of(Text.literal(
+                        """
+                        Messages of at least this size (in bytes), such as inventories, are compressed before sending to peers that support it.
+                        
+                        0 disables compression.
+                        """
+                    )))
+                    .binding(DEFAULTS.compressionThreshold, () -> compressionThreshold, val -> compressionThreshold = val)
+                    .controller(opt -> IntegerFieldControllerBuilder.create(opt)
+                        .range(0, 65_536))
+                    .build())
+                .option(Option.<Integer>createBuilder()
+                    .name(Text.literal("Snapshot Interval"))
+                    .description(OptionDescription.of(Text.literal(
+                        "Delay (in ms) between world snapshots sent to each peer while hosting. Applies the next time you host."
+                    )))
+                    .binding(DEFAULTS.snapshotIntervalMs, () -> snapshotIntervalMs, val -> snapshotIntervalMs = val)
+                    .controller(opt -> IntegerFieldControllerBuilder.create(opt)
+                        .range(10, 10_000))
+                    .build())
                 .option(Option.<Integer>createBuilder()
                     .name(Text.literal("UDP Ping Interval"))
                     .description(OptionDescription.of(Text.literal(
@@ -110,7 +110,7 @@ public class PlayerListEntry {
             player.lastZ = player.getZ();
             player.lastYaw = player.getYaw();
             player.lastPitch = player.getPitch();
-            player.updateTrackedPositionAndAngles(positionData.coords, positionData.yaw, positionData.pitch);
+            player.updateTrackedPositionAndAngles(positionData.getSmoothedCoords(System.currentTimeMillis()), positionData.yaw, positionData.pitch);
 
             paperDollRenderer.applyPoseToPlayer(player, positionData.pose);
         }
@@ -1,6 +1,7 @@
 package dev.hintsystem.playerrelay.gui;
 
 import dev.hintsystem.playerrelay.PlayerRelay;
+import dev.hintsystem.playerrelay.networking.InventorySubscriptions;
 import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
 import dev.hintsystem.playerrelay.payload.PlayerInventoryPayload;
 import dev.hintsystem.playerrelay.payload.player.PlayerEquipmentData;
@@ -52,6 +53,8 @@ public abstract class RemoteContainerScreen extends Screen {
     public final AbstractClientPlayerEntity playerEntity;
 
     private PlayerEquipmentData prevEquipment;
+    @Nullable
+    private InventorySubscriptions.Subscription subscription;
 
     public RemoteContainerScreen(Text title, PlayerInventoryPayload inventoryPayload) throws Exception {
         this(title, inventoryPayload, null);
@@ -74,6 +77,18 @@ public abstract class RemoteContainerScreen extends Screen {
         this.playerEntity = new AbstractClientPlayerEntity(world, playerPayload.toGameProfile()) {};
     }
 
+    /** Keeps the shown items updated until the screen is closed */
+    public RemoteContainerScreen withSubscription(InventorySubscriptions.Subscription subscription) {
+        this.subscription = subscription;
+        return this;
+    }
+
+    @Override
+    public void removed() {
+        super.removed();
+        if (subscription != null) subscription.close();
+    }
+
     private void updatePlayerEntityEquipment(PlayerEquipmentData equipmentData) {
         if (prevEquipment != null && !prevEquipment.hasChanged(equipmentData)) return;
 
@@ -1,13 +1,16 @@
 package dev.hintsystem.playerrelay.mixin.minecraft;
 
 import dev.hintsystem.playerrelay.PlayerRelay;
+import dev.hintsystem.playerrelay.PlayerStateTracker;
 import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
 
 import net.minecraft.client.network.PlayerListEntry;
+import net.minecraft.network.packet.s2c.play.*;
 
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import java.util.UUID;
@@ -26,4 +29,44 @@ public class ClientPlayNetworkHandlerMixin {
             if (fallback != null) { cir.setReturnValue(fallback.toPlayerListEntry()); }
         }
     }
+
+    // Packet handlers first reschedule themselves onto the client thread, only that call reaches TAIL
+
+    @Inject(method = "onHealthUpdate", at = @At("TAIL"))
+    private void markHealthDirty(HealthUpdateS2CPacket packet, CallbackInfo ci) {
+        PlayerStateTracker.markDirty(PlayerStateTracker.STATS);
+    }
+
+    @Inject(method = "onExperienceBarUpdate", at = @At("TAIL"))
+    private void markExperienceDirty(ExperienceBarUpdateS2CPacket packet, CallbackInfo ci) {
+        PlayerStateTracker.markDirty(PlayerStateTracker.STATS);
+    }
+
+    @Inject(method = "onEntityAttributes", at = @At("TAIL"))
+    private void markAttributesDirty(EntityAttributesS2CPacket packet, CallbackInfo ci) {
+        PlayerStateTracker.markDirty(PlayerStateTracker.STATS, packet.getEntityId());
+    }
+
+    // Absorption, fire and freezing are tracked data
+    @Inject(method = "onEntityTrackerUpdate", at = @At("TAIL"))
+    private void markTrackedDataDirty(EntityTrackerUpdateS2CPacket packet, CallbackInfo ci) {
+        PlayerStateTracker.markDirty(PlayerStateTracker.STATS | PlayerStateTracker.STATUS_EFFECTS, packet.id());
+    }
+
+    @Inject(method = "onEntityStatusEffect", at = @At("TAIL"))
+    private void markEffectAdded(EntityStatusEffectS2CPacket packet, CallbackInfo ci) {
+        PlayerStateTracker.markDirty(PlayerStateTracker.STATUS_EFFECTS, packet.getEntityId());
+    }
+
+    @Inject(method = "onRemoveEntityStatusEffect", at = @At("TAIL"))
+    private void markEffectRemoved(RemoveEntityStatusEffectS2CPacket packet, CallbackInfo ci) {
+        PlayerStateTracker.markDirty(PlayerStateTracker.STATUS_EFFECTS, packet.entityId());
+    }
+
+    @Inject(method = "onDifficulty", at = @At("TAIL"))
+    private void markDifficultyDirty(DifficultyS2CPacket packet, CallbackInfo ci) {
+        PlayerStateTracker.markDirty(PlayerStateTracker.WORLD);
+    }
+
+    // Changing dimension creates a new player entity, which marks everything dirty on its own
 }
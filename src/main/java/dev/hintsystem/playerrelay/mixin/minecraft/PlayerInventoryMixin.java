@@ -0,0 +1,33 @@
+package dev.hintsystem.playerrelay.mixin.minecraft;
+
+import dev.hintsystem.playerrelay.PlayerStateTracker;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.entity.player.PlayerInventory;
+
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(PlayerInventory.class)
+public class PlayerInventoryMixin {
+    @Shadow @Final public PlayerEntity player;
+
+    // Slot updates from the server and from clicking in screens both mark the inventory dirty
+    @Inject(method = "markDirty", at = @At("HEAD"))
+    private void markEquipmentDirty(CallbackInfo ci) {
+        // Armor follows the worn equipment
+        if (player == MinecraftClient.getInstance().player) {
+            PlayerStateTracker.markDirty(PlayerStateTracker.EQUIPMENT | PlayerStateTracker.STATS);
+        }
+    }
+
+    @Inject(method = "setSelectedSlot", at = @At("TAIL"))
+    private void markSelectedSlotDirty(int slot, CallbackInfo ci) {
+        if (player == MinecraftClient.getInstance().player) PlayerStateTracker.markDirty(PlayerStateTracker.EQUIPMENT);
+    }
+}
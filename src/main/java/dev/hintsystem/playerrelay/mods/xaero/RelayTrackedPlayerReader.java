@@ -32,6 +32,6 @@ public class RelayTrackedPlayerReader {
 
     public Vec3d getPos(PlayerInfoPayload player) {
         PlayerPositionData pos = player.getComponent(PlayerPositionData.class);
-        return pos != null ? pos.coords : null;
+        return pos != null ? pos.getSmoothedCoords(System.currentTimeMillis()) : null;
     }
 }
@@ -0,0 +1,179 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.networking.message.P2PMessage;
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+import dev.hintsystem.playerrelay.payload.ComponentSubscriptionPayload;
+import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
+import dev.hintsystem.playerrelay.payload.player.PlayerBasicData;
+import dev.hintsystem.playerrelay.payload.player.PlayerPositionData;
+import dev.hintsystem.playerrelay.payload.player.PlayerWorldData;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Host side filter for player updates, so peers only get the components they declared with a {@link ComponentSubscriptionPayload}
+ * at the rate they asked for.
+ * <p>
+ * A component sent sooner than the peer's interval after the last one is cut from the forwarded message. The latest state
+ * of a component cut this way is sent from the host's merged player info once the interval has passed, so the peer never
+ * keeps a stale value. Name, world and position are always forwarded, peers need them to list players and decode positions,
+ * and plain position updates are left to the {@link InterestManager}.
+ */
+public class ComponentFilter {
+    /** How often components cut from a peer's updates are checked for being due */
+    public static final long FLUSH_INTERVAL_MS = 250;
+
+    private static final int ALWAYS_FORWARDED = (1 << PlayerInfoPayload.getRegistryIndex(PlayerBasicData.class))
+        | (1 << PlayerInfoPayload.getRegistryIndex(PlayerWorldData.class))
+        | (1 << PlayerInfoPayload.getRegistryIndex(PlayerPositionData.class));
+
+    /** What a peer subscribed to and was sent, guarded by itself */
+    public static class PeerState {
+        @Nullable
+        private int[] minIntervalsMs = null;
+        private final Map<UUID, long[]> lastForwarded = new HashMap<>();
+        /** Components of each player cut from this peer's updates since they were last sent */
+        private final Map<UUID, Integer> pending = new HashMap<>();
+
+        public synchronized void subscribe(ComponentSubscriptionPayload subscription) { this.minIntervalsMs = subscription.minIntervalsMs; }
+
+        public synchronized boolean isSubscribed() { return minIntervalsMs != null; }
+
+        private boolean isThrottled(int component) {
+            return (ALWAYS_FORWARDED & (1 << component)) == 0 && minIntervalsMs[component] > 0;
+        }
+    }
+
+    private final P2PNetworkManager manager;
+
+    private final AtomicLong cutComponents = new AtomicLong();
+    private final AtomicLong flushedComponents = new AtomicLong();
+
+    public ComponentFilter(P2PNetworkManager manager) {
+        this.manager = manager;
+    }
+
+    /** Returns the component layout of a player update if any peer may need it filtered, otherwise null */
+    @Nullable
+    public PlayerInfoPayload.EncodedLayout layoutOf(P2PMessage message) {
+        if (message.getType() != P2PMessageType.PLAYER_INFO) return null;
+
+        boolean anySubscribed = false;
+        for (PeerConnection peer : manager.getConnectedPeers()) anySubscribed |= peer.componentSubscription.isSubscribed();
+        if (!anySubscribed) return null;
+
+        try {
+            return PlayerInfoPayload.scanEncoded(message.getPayloadByteBuf());
+        } catch (Exception e) {
+            // Forwarded unchanged, the receivers report the malformed payload
+            return null;
+        }
+    }
+
+    /** Returns the message as the peer should get it, without the components it does not want yet */
+    public P2PMessage filter(PeerConnection receiver, P2PMessage message, PlayerInfoPayload.EncodedLayout layout, long now) {
+        PeerState state = receiver.componentSubscription;
+        int removed = 0;
+
+        synchronized (state) {
+            if (state.minIntervalsMs == null) return message;
+
+            UUID playerId = playerIdOf(message);
+            long[] lastForwarded = state.lastForwarded.computeIfAbsent(playerId, id -> new long[PlayerInfoPayload.getRegistrySize()]);
+            int pending = state.pending.getOrDefault(playerId, 0);
+
+            for (int i = 0; i < lastForwarded.length; i++) {
+                if (!layout.hasComponent(i) || !state.isThrottled(i)) continue;
+
+                int bit = 1 << i;
+                if (now - lastForwarded[i] < state.minIntervalsMs[i]) {
+                    removed |= bit;
+                    pending |= bit;
+                    continue;
+                }
+
+                lastForwarded[i] = now;
+                // A partial update does not make up for the fields of one cut earlier, the full state is still due then
+                if (!layout.isPartial(i)) pending &= ~bit;
+            }
+
+            if (pending != 0) state.pending.put(playerId, pending);
+            else state.pending.remove(playerId);
+        }
+
+        if (removed == 0) return message;
+
+        cutComponents.addAndGet(Integer.bitCount(removed));
+        return message.withPayload(layout.without(message.getPayloadBuffer(), removed));
+    }
+
+    private static UUID playerIdOf(P2PMessage message) {
+        ByteBuffer payload = message.getPayloadBuffer();
+        return new UUID(payload.getLong(0), payload.getLong(8));
+    }
+
+    /** Sends every peer the latest state of the components cut from its updates whose interval has passed */
+    public void flush() {
+        long now = System.currentTimeMillis();
+
+        for (PeerConnection peer : manager.getConnectedPeers()) {
+            PeerState state = peer.componentSubscription;
+
+            synchronized (state) {
+                if (state.minIntervalsMs == null) continue;
+
+                Iterator<Map.Entry<UUID, Integer>> it = state.pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<UUID, Integer> entry = it.next();
+                    PlayerInfoPayload current = manager.getMergedPlayerInfo(entry.getKey());
+                    if (current == null) {
+                        it.remove();
+                        continue;
+                    }
+
+                    long[] lastForwarded = state.lastForwarded.get(entry.getKey());
+                    int pending = entry.getValue();
+
+                    for (int i = 0; i < lastForwarded.length; i++) {
+                        if ((pending & (1 << i)) == 0 || now - lastForwarded[i] < state.minIntervalsMs[i]) continue;
+
+                        PlayerInfoPayload component;
+                        // Merged player infos are updated on the client thread while holding their lock
+                        synchronized (current) { component = current.extractComponent(i); }
+
+                        if (component != null) {
+                            peer.sendMessage(component.message());
+                            flushedComponents.incrementAndGet();
+                        }
+                        lastForwarded[i] = now;
+                        pending &= ~(1 << i);
+                    }
+
+                    if (pending == 0) it.remove();
+                    else entry.setValue(pending);
+                }
+            }
+        }
+    }
+
+    public void removePlayer(UUID playerId) {
+        for (PeerConnection peer : manager.getConnectedPeers()) {
+            PeerState state = peer.componentSubscription;
+
+            synchronized (state) {
+                state.lastForwarded.remove(playerId);
+                state.pending.remove(playerId);
+            }
+        }
+    }
+
+    public long getCutComponents() { return cutComponents.get(); }
+    public long getFlushedComponents() { return flushedComponents.get(); }
+}
@@ -0,0 +1,106 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.logging.PlayerRelayLogger;
+import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Hands decoded messages from the network threads to the client thread.
+ * <p>
+ * Any thread may post, only the client thread drains, once per tick and within a budget. Player info
+ * updates are collapsed per player while they wait, so a burst of position updates for one player
+ * costs a single apply.
+ */
+public class InboundEventQueue {
+    private final PlayerRelayLogger logger;
+
+    private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<UUID, PlayerInfoPayload> pendingPlayerInfo = new ConcurrentHashMap<>();
+
+    private final AtomicLong collapsedUpdates = new AtomicLong();
+
+    public InboundEventQueue(PlayerRelayLogger logger) {
+        this.logger = logger;
+    }
+
+    public void post(Runnable event) { events.offer(event); }
+
+    /**
+     * Queues a player info update. If an update for the same player is still waiting it is merged into
+     * that one, keeping the latest value of every component, and no new event is queued.
+     */
+    public void postPlayerInfo(PlayerInfoPayload update, Consumer<PlayerInfoPayload> apply) {
+        UUID playerId = update.playerId;
+        boolean[] queued = { false };
+
+        pendingPlayerInfo.compute(playerId, (id, pending) -> {
+            if (pending == null) {
+                queued[0] = true;
+                return update;
+            }
+
+            // Merge replaces the flags, but the player still has to be announced as connected
+            boolean newConnection = pending.hasFlag(PlayerInfoPayload.FLAGS.NEW_CONNECTION);
+            pending.merge(update);
+            if (newConnection) pending.setFlag(PlayerInfoPayload.FLAGS.NEW_CONNECTION, true);
+            return pending;
+        });
+
+        if (queued[0]) {
+            events.offer(() -> {
+                PlayerInfoPayload latest = pendingPlayerInfo.remove(playerId);
+                if (latest != null) apply.accept(latest);
+            });
+        } else {
+            collapsedUpdates.incrementAndGet();
+        }
+    }
+
+    /**
+     * Takes the player's waiting info update out of the queue, so later updates are not merged into an
+     * update that should be applied before an event posted now.
+     */
+    @Nullable
+    public PlayerInfoPayload takePendingPlayerInfo(UUID playerId) { return pendingPlayerInfo.remove(playerId); }
+
+    /**
+     * Applies queued events in order until the queue is empty, {@code maxEvents} were applied or the
+     * time budget is used up. Must be called from the client thread.
+     * @return the number of events applied
+     */
+    public int drain(int maxEvents, long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        int applied = 0;
+
+        Runnable event;
+        while (applied < maxEvents && (event = events.poll()) != null) {
+            try {
+                event.run();
+            } catch (Exception e) {
+                logger.error().message("Error applying inbound event: {}", e.getMessage(), e).build();
+            }
+
+            applied++;
+            if (System.nanoTime() - deadline >= 0) break;
+        }
+
+        return applied;
+    }
+
+    public void clear() {
+        events.clear();
+        pendingPlayerInfo.clear();
+    }
+
+    public boolean isEmpty() { return events.isEmpty(); }
+    public long getCollapsedUpdates() { return collapsedUpdates.get(); }
+}
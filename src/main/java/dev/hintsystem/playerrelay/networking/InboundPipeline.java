@@ -0,0 +1,120 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.logging.PlayerRelayLogger;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs message handlers off the network threads while keeping the messages of each ordering key, usually their
+ * origin, in order.
+ * <p>
+ * Keys are spread over a fixed number of lanes. A lane runs its tasks one at a time on the shared
+ * executor, so handlers for one key never overlap or reorder, while different lanes run concurrently.
+ * <p>
+ * A handler that has to wait for data its message refers to holds its key, later tasks with that key wait
+ * until it continues, while other keys on the same lane keep running.
+ */
+public class InboundPipeline {
+    public static final int LANE_COUNT = 8;
+
+    private final PlayerRelayLogger logger;
+    private final Executor executor;
+    private final Lane[] lanes = new Lane[LANE_COUNT];
+    /** Tasks waiting behind a held key, only touched from the lane of the key */
+    private final Map<Integer, Queue<Task>> heldKeys = new ConcurrentHashMap<>();
+
+    private record Task(int key, Runnable runnable, boolean continuation) {}
+
+    public InboundPipeline(Executor executor, PlayerRelayLogger logger) {
+        this.executor = executor;
+        this.logger = logger;
+        for (int i = 0; i < LANE_COUNT; i++) lanes[i] = new Lane();
+    }
+
+    /** Queues a task behind every earlier task with the same key */
+    public void dispatch(int key, Runnable task) {
+        laneOf(key).submit(new Task(key, task, false));
+    }
+
+    /**
+     * Holds back the tasks with the key dispatched from now on until {@link #resume} is called.
+     * Only called from a running task with that key.
+     */
+    public void hold(int key) { heldKeys.putIfAbsent(key, new ArrayDeque<>()); }
+
+    /** Runs the continuation of the task that held the key, then the tasks held back behind it */
+    public void resume(int key, Runnable continuation) {
+        laneOf(key).submit(new Task(key, continuation, true));
+    }
+
+    private Lane laneOf(int key) { return lanes[Math.floorMod(key, LANE_COUNT)]; }
+
+    /** Drops tasks that have not started yet */
+    public void clear() {
+        for (Lane lane : lanes) lane.tasks.clear();
+        heldKeys.clear();
+    }
+
+    private void execute(Task task) {
+        if (!task.continuation) {
+            Queue<Task> held = heldKeys.get(task.key);
+            if (held != null) held.add(task);
+            else runSafely(task.runnable);
+            return;
+        }
+
+        runSafely(task.runnable);
+
+        // A released task may hold the key again, the rest then queue up behind it once more
+        Queue<Task> held = heldKeys.remove(task.key);
+        Task next;
+        while (held != null && (next = held.poll()) != null) execute(next);
+    }
+
+    private void runSafely(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (Exception e) {
+            logger.error().message("Error in inbound message handler: {}", e.getMessage(), e).build();
+        }
+    }
+
+    private class Lane implements Runnable {
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        void submit(Task task) {
+            tasks.offer(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (tasks.isEmpty() || !scheduled.compareAndSet(false, true)) return;
+
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, nothing left to deliver to
+                scheduled.set(false);
+                tasks.clear();
+            }
+        }
+
+        @Override
+        public void run() {
+            Task task;
+            while ((task = tasks.poll()) != null) execute(task);
+
+            scheduled.set(false);
+            // A task may have been queued after the last poll but before the flag was cleared
+            schedule();
+        }
+    }
+}
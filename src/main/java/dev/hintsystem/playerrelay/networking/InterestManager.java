@@ -0,0 +1,144 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.PlayerRelay;
+import dev.hintsystem.playerrelay.networking.message.P2PMessage;
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
+import dev.hintsystem.playerrelay.payload.player.PlayerPositionData;
+import dev.hintsystem.playerrelay.payload.player.PlayerWorldData;
+
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.world.World;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Host side filter for position updates, so peers get full-rate movement only for the players they can actually see.
+ * <p>
+ * A player is of interest to a peer if one of the peer's players is in the same dimension and within
+ * {@link dev.hintsystem.playerrelay.config.Config#interestRadius} blocks. Position updates of other players are forwarded
+ * at most every {@link dev.hintsystem.playerrelay.config.Config#farUpdateIntervalMs} ms, scaled by how many radii away the
+ * nearest of the peer's players is, up to {@value #MAX_FAR_SCALE} times as long. Only plain UDP position deltas
+ * are held back, keyframes and all other updates always go through.
+ * <p>
+ * Peers report the players they see as entities through the game server with a {@link dev.hintsystem.playerrelay.payload.VisiblePlayersPayload},
+ * their position deltas are not sent to that peer at all. Once a player leaves its sight, the peer is sent the player's
+ * current position right away.
+ */
+public class InterestManager {
+    /** The far update interval grows with distance up to this factor, also used for players in another dimension */
+    public static final double MAX_FAR_SCALE = 4;
+
+    private record Position(@Nullable RegistryKey<World> dimension, PlayerPositionData position) {
+        Vec3d coords(long now) { return position.extrapolate(now); }
+    }
+
+    /** Latest known position of every player, updated on the client thread and read on network threads */
+    private final ConcurrentMap<UUID, Position> positions = new ConcurrentHashMap<>();
+
+    private final P2PNetworkManager manager;
+
+    private final AtomicLong heldBackUpdates = new AtomicLong();
+    private final AtomicLong inSightUpdates = new AtomicLong();
+
+    public InterestManager(P2PNetworkManager manager) {
+        this.manager = manager;
+    }
+
+    public static boolean isEnabled() { return PlayerRelay.config.interestRadius > 0; }
+
+    public void updatePosition(PlayerInfoPayload info) {
+        PlayerPositionData position = info.getComponent(PlayerPositionData.class);
+        if (position == null || position.coords == null) return;
+
+        PlayerWorldData world = info.getComponent(PlayerWorldData.class);
+        positions.put(info.playerId, new Position((world != null) ? world.dimension : null, position));
+    }
+
+    public void removePlayer(UUID playerId) {
+        positions.remove(playerId);
+        for (PeerConnection peer : manager.getConnectedPeers()) peer.lastFarUpdates.remove(playerId);
+    }
+
+    /** Returns the player a plain position update is about, or null if the message is anything else */
+    @Nullable
+    public static UUID positionUpdateOf(P2PMessage message) {
+        if (message.getType() != P2PMessageType.PLAYER_INFO || message.getPreferredProtocol() != NetworkProtocol.UDP) return null;
+        return PlayerInfoPayload.peekPositionUpdate(message.getPayloadBuffer());
+    }
+
+    /** Decides whether a position update of the player is sent to the peer now */
+    public boolean shouldSend(PeerConnection receiver, UUID playerId, long now) {
+        if (receiver.visiblePlayers.contains(playerId)) {
+            inSightUpdates.incrementAndGet();
+            return false;
+        }
+        if (!isEnabled()) return true;
+
+        double radius = PlayerRelay.config.interestRadius;
+        double distance = nearestViewerDistance(receiver, playerId, now);
+        if (distance <= radius) return true;
+
+        long interval = (long) (PlayerRelay.config.farUpdateIntervalMs * Math.min(distance / radius, MAX_FAR_SCALE));
+        Long lastSent = receiver.lastFarUpdates.get(playerId);
+        if (lastSent != null && now - lastSent < interval) {
+            heldBackUpdates.incrementAndGet();
+            return false;
+        }
+
+        receiver.lastFarUpdates.put(playerId, now);
+        return true;
+    }
+
+    /** Returns the distance to the closest of the peer's players, infinite if none is in the same dimension */
+    private double nearestViewerDistance(PeerConnection receiver, UUID playerId, long now) {
+        // Unknown positions count as near, an update too many is better than a player frozen in place
+        Position subject = positions.get(playerId);
+        if (subject == null) return 0;
+
+        double nearest = Double.POSITIVE_INFINITY;
+        boolean anyKnown = false;
+
+        for (UUID viewerId : receiver.announcedPlayers) {
+            Position viewer = positions.get(viewerId);
+            if (viewer == null) continue;
+            anyKnown = true;
+
+            if (Objects.equals(viewer.dimension(), subject.dimension())) {
+                nearest = Math.min(nearest, viewer.coords(now).distanceTo(subject.coords(now)));
+            }
+        }
+        return anyKnown ? nearest : 0;
+    }
+
+    /** Updates the players a peer sees as entities and sends it the current position of those it no longer sees */
+    public void onVisiblePlayers(PeerConnection receiver, Set<UUID> visible) {
+        Set<UUID> previous = receiver.visiblePlayers;
+        receiver.visiblePlayers = visible;
+
+        int positionIndex = PlayerInfoPayload.getRegistryIndex(PlayerPositionData.class);
+        for (UUID playerId : previous) {
+            if (visible.contains(playerId)) continue;
+
+            PlayerInfoPayload current = manager.getMergedPlayerInfo(playerId);
+            if (current == null) continue;
+
+            PlayerInfoPayload position;
+            synchronized (current) { position = current.extractComponent(positionIndex); }
+            if (position != null) receiver.sendMessage(position.message());
+        }
+    }
+
+    public void clear() { positions.clear(); }
+
+    public long getHeldBackUpdates() { return heldBackUpdates.get(); }
+    public long getInSightUpdates() { return inSightUpdates.get(); }
+}
@@ -0,0 +1,292 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.EnderChestTracker;
+import dev.hintsystem.playerrelay.payload.PlayerInventoryPayload;
+
+import net.minecraft.client.network.ClientPlayerEntity;
+import net.minecraft.entity.player.PlayerInventory;
+import net.minecraft.item.ItemStack;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Live inventory and ender chest views, so an open peek screen follows the owner's changes without re-requesting everything.
+ * <p>
+ * Subscribers renew their subscription every {@value #RENEW_INTERVAL_MS} ms, the owner forgets a subscriber it has not
+ * heard from for {@value #SUBSCRIPTION_TIMEOUT_MS} ms. While anyone is subscribed, the owner compares its contents at
+ * most every {@value #PUBLISH_INTERVAL_MS} ms and broadcasts the changed slots only.
+ * <p>
+ * Requests and responses are posted to the {@link InboundEventQueue} and both sides tick at the end of every client tick,
+ * only closing a subscription may happen on another thread, when its first snapshot times out.
+ */
+public class InventorySubscriptions {
+    public static final long RENEW_INTERVAL_MS = 5000;
+    public static final long SUBSCRIPTION_TIMEOUT_MS = 3 * RENEW_INTERVAL_MS;
+    public static final long PUBLISH_INTERVAL_MS = 250;
+
+    /** A live view of another player's inventory or ender chest, closed when the screen showing it is */
+    public class Subscription {
+        public final UUID playerId;
+        public final boolean isEnderChest;
+
+        private final CompletableFuture<Subscription> ready = new CompletableFuture<>();
+        private PlayerInventoryPayload inventory;
+        private int revision;
+        private long lastRenewal;
+        private boolean resyncRequested = false;
+
+        private Subscription(UUID playerId, boolean isEnderChest) {
+            this.playerId = playerId;
+            this.isEnderChest = isEnderChest;
+        }
+
+        /** The latest contents, the item list is updated in place as diffs arrive */
+        public PlayerInventoryPayload getInventory() { return inventory; }
+
+        public void close() { InventorySubscriptions.this.close(this); }
+    }
+
+    /** Owner side state of one container, shared by all of its subscribers */
+    private static class Publication {
+        final boolean isEnderChest;
+        final Map<UUID, Long> subscriberExpiry = new HashMap<>();
+        @Nullable List<ItemStack> lastSent = null;
+        int revision = 0;
+        long lastPublishTime = 0;
+
+        Publication(boolean isEnderChest) { this.isEnderChest = isEnderChest; }
+    }
+
+    private final P2PNetworkManager networkManager;
+
+    private final Map<UUID, Subscription> inventorySubscriptions = new ConcurrentHashMap<>();
+    private final Map<UUID, Subscription> enderChestSubscriptions = new ConcurrentHashMap<>();
+
+    private final Publication inventoryPublication = new Publication(false);
+    private final Publication enderChestPublication = new Publication(true);
+
+    public InventorySubscriptions(P2PNetworkManager networkManager) {
+        this.networkManager = networkManager;
+    }
+
+    private Map<UUID, Subscription> subscriptions(boolean isEnderChest) {
+        return isEnderChest ? enderChestSubscriptions : inventorySubscriptions;
+    }
+
+    private Publication publication(boolean isEnderChest) {
+        return isEnderChest ? enderChestPublication : inventoryPublication;
+    }
+
+    /**
+     * Subscribes to a player's inventory or ender chest, replacing an earlier subscription to the same container.
+     * @return completes with the subscription once the first snapshot arrived
+     */
+    public CompletableFuture<Subscription> subscribe(UUID playerId, boolean isEnderChest) {
+        UUID subscriberId = networkManager.getMessageHandler().getClientPlayerUuid();
+        if (subscriberId == null) return CompletableFuture.failedFuture(new IllegalStateException("Client not in a world"));
+
+        Subscription subscription = new Subscription(playerId, isEnderChest);
+        subscription.lastRenewal = System.currentTimeMillis();
+        subscription.ready.whenComplete((s, e) -> { if (e != null) subscription.close(); });
+
+        subscriptions(isEnderChest).put(playerId, subscription);
+        sendToOwner(playerId, PlayerInventoryPayload.subscribe(playerId, isEnderChest, subscriberId, false));
+
+        return subscription.ready;
+    }
+
+    private void close(Subscription subscription) {
+        // A newer subscription to the same container keeps the owner publishing
+        if (!subscriptions(subscription.isEnderChest).remove(subscription.playerId, subscription)) return;
+
+        UUID subscriberId = networkManager.getMessageHandler().getClientPlayerUuid();
+        if (subscriberId != null) {
+            sendToOwner(subscription.playerId, PlayerInventoryPayload.unsubscribe(subscription.playerId, subscription.isEnderChest, subscriberId));
+        }
+    }
+
+    private void sendToOwner(UUID playerId, PlayerInventoryPayload payload) {
+        for (PeerConnection peer : networkManager.getConnectedPeers()) {
+            if (peer.announcedPlayers.contains(playerId)) peer.sendMessage(payload.message());
+        }
+    }
+
+    /** Handles a subscription request addressed to the local player */
+    public void onRequest(PlayerInventoryPayload request, ClientPlayerEntity player) {
+        Publication publication = publication(request.isEnderChest());
+
+        if (request.isUnsubscribe()) {
+            publication.subscriberExpiry.remove(request.subscriberId);
+            if (publication.subscriberExpiry.isEmpty()) publication.lastSent = null;
+            return;
+        }
+
+        boolean known = publication.subscriberExpiry.put(request.subscriberId, System.currentTimeMillis() + SUBSCRIPTION_TIMEOUT_MS) != null;
+
+        // A renewal from a subscriber we forgot, e.g. after reconnecting, still needs a snapshot
+        if (!request.isRenewal() || !known) publishSnapshot(publication, player);
+    }
+
+    /**
+     * Handles a response or diff for a subscribed container
+     * @param incomplete if true, some of its item stacks could not be fetched, the container is requested again instead
+     */
+    public void onResponse(PlayerInventoryPayload response, boolean incomplete) {
+        Subscription subscription = subscriptions(response.isEnderChest()).get(response.playerId);
+        if (subscription == null) return;
+
+        if (!response.hasData()) {
+            subscription.ready.completeExceptionally(new IllegalStateException(response.getMissingDataMessage()));
+            return;
+        }
+
+        if (incomplete) {
+            requestResync(subscription);
+            return;
+        }
+
+        if (!response.isDiff()) {
+            if (subscription.inventory == null) {
+                // Diffs change the list in place, so it must not be shared with the decoded message
+                response.inventoryItems = new ArrayList<>(response.inventoryItems);
+                subscription.inventory = response;
+            } else {
+                subscription.inventory.inventoryItems.clear();
+                subscription.inventory.inventoryItems.addAll(response.inventoryItems);
+            }
+
+            subscription.revision = response.revision;
+            subscription.resyncRequested = false;
+            subscription.ready.complete(subscription);
+            return;
+        }
+
+        // Diffs sent before the first snapshot are already part of it
+        if (subscription.inventory == null) return;
+
+        if (response.revision != subscription.revision + 1) {
+            requestResync(subscription);
+            return;
+        }
+
+        List<ItemStack> items = subscription.inventory.inventoryItems;
+        for (Map.Entry<Integer, ItemStack> slot : response.changedSlots.entrySet()) {
+            while (items.size() <= slot.getKey()) items.add(ItemStack.EMPTY);
+            items.set(slot.getKey(), slot.getValue());
+        }
+        subscription.revision = response.revision;
+    }
+
+    private void requestResync(Subscription subscription) {
+        if (subscription.resyncRequested) return;
+
+        UUID subscriberId = networkManager.getMessageHandler().getClientPlayerUuid();
+        if (subscriberId == null) return;
+
+        subscription.resyncRequested = true;
+        subscription.lastRenewal = System.currentTimeMillis();
+        sendToOwner(subscription.playerId, PlayerInventoryPayload.subscribe(subscription.playerId, subscription.isEnderChest, subscriberId, false));
+    }
+
+    /** Renews own subscriptions and publishes changes to the local player's containers */
+    public void tick(@Nullable ClientPlayerEntity player) {
+        long now = System.currentTimeMillis();
+
+        if (player != null) {
+            renewSubscriptions(inventorySubscriptions, player.getUuid(), now);
+            renewSubscriptions(enderChestSubscriptions, player.getUuid(), now);
+
+            publishChanges(inventoryPublication, player, now);
+            publishChanges(enderChestPublication, player, now);
+        }
+    }
+
+    private void renewSubscriptions(Map<UUID, Subscription> subscriptions, UUID subscriberId, long now) {
+        for (Subscription subscription : subscriptions.values()) {
+            if (now - subscription.lastRenewal < RENEW_INTERVAL_MS) continue;
+
+            subscription.lastRenewal = now;
+            // Without a snapshot yet, the first request may have been lost
+            boolean renewal = subscription.inventory != null && !subscription.resyncRequested;
+            sendToOwner(subscription.playerId, PlayerInventoryPayload.subscribe(subscription.playerId, subscription.isEnderChest, subscriberId, renewal));
+        }
+    }
+
+    private void publishSnapshot(Publication publication, ClientPlayerEntity player) {
+        PlayerInventoryPayload snapshot = PlayerInventoryPayload.respond(player, publication.isEnderChest);
+
+        if (snapshot.hasData()) {
+            snapshot.revision = ++publication.revision;
+            publication.lastSent = copyItems(snapshot.inventoryItems);
+            publication.lastPublishTime = System.currentTimeMillis();
+        }
+
+        // Every subscriber on every peer may apply it, so it goes to all of them
+        networkManager.broadcastMessage(snapshot.message());
+    }
+
+    private void publishChanges(Publication publication, ClientPlayerEntity player, long now) {
+        if (publication.subscriberExpiry.isEmpty()) return;
+
+        publication.subscriberExpiry.values().removeIf(expiry -> expiry < now);
+        if (publication.subscriberExpiry.isEmpty()) {
+            publication.lastSent = null;
+            return;
+        }
+
+        if (publication.lastSent == null || now - publication.lastPublishTime < PUBLISH_INTERVAL_MS) return;
+
+        List<ItemStack> current = currentItems(publication.isEnderChest, player);
+        if (current == null) return;
+
+        Map<Integer, ItemStack> changedSlots = new LinkedHashMap<>();
+        for (int slot = 0; slot < current.size(); slot++) {
+            ItemStack stack = current.get(slot);
+            ItemStack sent = (slot < publication.lastSent.size()) ? publication.lastSent.get(slot) : ItemStack.EMPTY;
+
+            if (!ItemStack.areEqual(stack, sent)) changedSlots.put(slot, stack.copy());
+        }
+
+        if (changedSlots.isEmpty()) return;
+
+        publication.lastSent = copyItems(current);
+        publication.lastPublishTime = now;
+        networkManager.broadcastMessage(PlayerInventoryPayload.diff(player.getUuid(), publication.isEnderChest,
+            ++publication.revision, changedSlots).message());
+    }
+
+    @Nullable
+    private static List<ItemStack> currentItems(boolean isEnderChest, ClientPlayerEntity player) {
+        if (isEnderChest) {
+            return EnderChestTracker.hasEnderChestInventory() ? EnderChestTracker.getEnderChestInventory() : null;
+        }
+
+        PlayerInventory inventory = player.getInventory();
+        List<ItemStack> items = new ArrayList<>(inventory.size());
+        for (int i = 0; i < inventory.size(); i++) items.add(inventory.getStack(i));
+        return items;
+    }
+
+    private static List<ItemStack> copyItems(List<ItemStack> items) {
+        List<ItemStack> copy = new ArrayList<>(items.size());
+        for (ItemStack stack : items) copy.add(stack.copy());
+        return copy;
+    }
+
+    public void clear() {
+        List<Subscription> closed = new ArrayList<>(inventorySubscriptions.values());
+        closed.addAll(enderChestSubscriptions.values());
+        inventorySubscriptions.clear();
+        enderChestSubscriptions.clear();
+        for (Subscription subscription : closed) subscription.ready.cancel(false);
+
+        inventoryPublication.subscriberExpiry.clear();
+        inventoryPublication.lastSent = null;
+        enderChestPublication.subscriberExpiry.clear();
+        enderChestPublication.lastSent = null;
+    }
+}
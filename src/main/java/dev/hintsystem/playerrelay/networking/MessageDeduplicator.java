@@ -0,0 +1,41 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.networking.message.MessageId;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Detects messages that have already been seen, to stop them from looping through the network.
+ * <p>
+ * Each origin gets a sliding window of {@link #WINDOW_SIZE} sequence numbers. Sequence {@code s}
+ * lives in slot {@code s % WINDOW_SIZE}, which remembers the newest sequence mapped to it, so a
+ * message is new if its slot holds an older sequence. Claiming a slot is a single CAS, so readers
+ * on different threads never contend on a shared lock.
+ */
+public class MessageDeduplicator {
+    public static final int WINDOW_SIZE = 1024;
+
+    private final Map<Integer, AtomicIntegerArray> windows = new ConcurrentHashMap<>();
+
+    /**
+     * Records the id as seen.
+     * @return true if the message is new, false if it is a duplicate or too old to tell
+     */
+    public boolean markSeen(MessageId id) {
+        AtomicIntegerArray window = windows.computeIfAbsent(id.origin(), origin -> new AtomicIntegerArray(WINDOW_SIZE));
+        int sequence = id.sequence();
+        int slot = Math.floorMod(sequence, WINDOW_SIZE);
+
+        while (true) {
+            int current = window.get(slot);
+
+            // Equal means duplicate, newer means the sequence has slid out of the window
+            if (current - sequence >= 0 && current != 0) return false;
+            if (window.compareAndSet(slot, current, sequence)) return true;
+        }
+    }
+
+    public void clear() { windows.clear(); }
+}
@@ -2,7 +2,9 @@ package dev.hintsystem.playerrelay.networking;
 
 public enum NetworkProtocol {
     TCP(0),
-    UDP(1);
+    UDP(1),
+    /** Acknowledged and ordered per stream over UDP, see {@link ReliableUdpChannel}. Uses TCP while UDP is unavailable */
+    RELIABLE_UDP(2);
 
     private final int id;
 
@@ -0,0 +1,140 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.networking.message.P2PMessage;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of messages waiting to be written to a single peer.
+ * <p>
+ * Producers (the client tick, message forwarding) only ever enqueue, the transport drains the queue
+ * from its own threads. When the queue is full, the {@link OverflowPolicy} of the incoming message
+ * decides what happens.
+ */
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        /** Latest-state updates: evict the oldest droppable message, newer data supersedes it anyway */
+        DROP_OLDEST,
+        /** Reliable messages: wait for space, and report failure if none frees up in time */
+        BLOCK_OR_DISCONNECT
+    }
+
+    private final ArrayDeque<P2PMessage> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final int capacity;
+
+    // Stats are guarded by the lock like the queue
+    private int highWaterMark = 0;
+    private long enqueuedMessages = 0;
+    private long droppedMessages = 0;
+
+    public OutboundQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public static OverflowPolicy policyFor(P2PMessage message) {
+        return (message.getPreferredProtocol() == NetworkProtocol.UDP)
+            ? OverflowPolicy.DROP_OLDEST : OverflowPolicy.BLOCK_OR_DISCONNECT;
+    }
+
+    /**
+     * Adds a message to the queue.
+     * @param blockTimeoutMs how long a {@link OverflowPolicy#BLOCK_OR_DISCONNECT} message may wait for space
+     * @return false if a reliable message could not be queued and the peer should be disconnected
+     */
+    public boolean offer(P2PMessage message, long blockTimeoutMs) {
+        OverflowPolicy policy = policyFor(message);
+
+        lock.lock();
+        try {
+            if (queue.size() >= capacity && !evictOldestDroppable()) {
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    // Queue is full of reliable messages, the update itself is the oldest droppable one
+                    droppedMessages++;
+                    return true;
+                }
+
+                long remainingNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+                while (queue.size() >= capacity) {
+                    if (remainingNanos <= 0) return false;
+                    remainingNanos = notFull.awaitNanos(remainingNanos);
+                }
+            }
+
+            queue.addLast(message);
+            enqueuedMessages++;
+            highWaterMark = Math.max(highWaterMark, queue.size());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean evictOldestDroppable() {
+        Iterator<P2PMessage> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (policyFor(iterator.next()) == OverflowPolicy.DROP_OLDEST) {
+                iterator.remove();
+                droppedMessages++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    public P2PMessage poll() {
+        lock.lock();
+        try {
+            P2PMessage message = queue.pollFirst();
+            if (message != null) notFull.signal();
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            queue.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() { return size() == 0; }
+
+    public int size() {
+        lock.lock();
+        try { return queue.size(); } finally { lock.unlock(); }
+    }
+
+    public int getCapacity() { return capacity; }
+
+    public int getHighWaterMark() {
+        lock.lock();
+        try { return highWaterMark; } finally { lock.unlock(); }
+    }
+
+    public long getEnqueuedMessages() {
+        lock.lock();
+        try { return enqueuedMessages; } finally { lock.unlock(); }
+    }
+
+    public long getDroppedMessages() {
+        lock.lock();
+        try { return droppedMessages; } finally { lock.unlock(); }
+    }
+}
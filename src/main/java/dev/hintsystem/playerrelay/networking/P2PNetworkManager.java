@@ -1,12 +1,17 @@
 package dev.hintsystem.playerrelay.networking;
 
 import dev.hintsystem.playerrelay.ClientCore;
+import dev.hintsystem.playerrelay.EntityVisibilityTracker;
 import dev.hintsystem.playerrelay.PlayerRelay;
 import dev.hintsystem.playerrelay.logging.LogEventTypes;
 import dev.hintsystem.playerrelay.logging.PlayerRelayLogger;
 import dev.hintsystem.playerrelay.networking.message.*;
+import dev.hintsystem.playerrelay.networking.transport.*;
+import dev.hintsystem.playerrelay.payload.ComponentSubscriptionPayload;
+import dev.hintsystem.playerrelay.payload.ItemStackCache;
 import dev.hintsystem.playerrelay.payload.RelayVersionPayload;
 import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
+import dev.hintsystem.playerrelay.payload.player.PlayerPositionData;
 import dev.hintsystem.playerrelay.logging.LogLocation;
 
 import net.minecraft.network.PacketByteBuf;
@@ -16,6 +21,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -24,17 +30,18 @@ public class P2PNetworkManager {
     public final PlayerRelayLogger logger = new PlayerRelayLogger(LogLocation.NETWORK_MANAGER);
 
     public static final int MAX_UDP_PACKET_SIZE = 65535;
+    /** Largest datagram sent until path MTU discovery found the limit of a peer, stays below a typical 1500 byte MTU after IP and UDP headers */
+    public static final int UDP_DATAGRAM_BUDGET = 1450;
     public static final int UDP_RECEIVE_TIMEOUT = 1000;
-    public static final int MAX_MESSAGE_ID_HISTORY = 1024;
 
     public static final int DEFAULT_PORT = 25566;
 
     private UPnPManager upnpManager;
-    private DatagramSocket udpSocket;
-    private ServerSocket serverSocket;
+    private Transport transport;
     private int serverPort;
     private final P2PMessageHandler messageHandler;
     private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
     private final AtomicBoolean running = new AtomicBoolean(false);
     private boolean isHost = false;
 
@@ -43,15 +50,21 @@ public class P2PNetworkManager {
     private short nextUdpId = 1;
     public final Map<UUID, PlayerInfoPayload> connectedPlayers = new ConcurrentHashMap<>();
 
-    private final Set<UUID> recentMessageIds = Collections.newSetFromMap(
-        new LinkedHashMap<>(MAX_MESSAGE_ID_HISTORY + 1, 1.0f, false) {
-            @Override protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) { return size() > MAX_MESSAGE_ID_HISTORY; }
-        }
-    );
+    private final MessageDeduplicator deduplicator = new MessageDeduplicator();
+    private final InboundPipeline inboundPipeline;
+    private final WorldSnapshotAggregator snapshotAggregator = new WorldSnapshotAggregator(this);
+    private final InterestManager interestManager = new InterestManager(this);
+    private final ComponentFilter componentFilter = new ComponentFilter(this);
+    private ScheduledFuture<?> snapshotTask;
+    private ScheduledFuture<?> componentFlushTask;
+    /** The component subscription last sent to the host, null while not connected to one */
+    private volatile int[] sentComponentSubscription = null;
 
     public P2PNetworkManager() {
         executor = Executors.newCachedThreadPool();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
         messageHandler = new P2PMessageHandler(this);
+        inboundPipeline = new InboundPipeline(executor, logger);
     }
 
     public void startServer() throws Exception {
@@ -68,13 +81,20 @@ public class P2PNetworkManager {
             }
         }
 
-        serverSocket = findAvailablePort(PlayerRelay.config.defaultHostingPort);
-        serverPort = serverSocket.getLocalPort();
+        // Must be set before binding so the transport's receive loops keep running
+        running.set(true);
+
+        Transport transport = getOrCreateTransport();
+        try {
+            serverPort = bindAvailablePort(transport, PlayerRelay.config.defaultHostingPort);
+        } catch (RuntimeException e) {
+            running.set(false);
+            throw e;
+        }
 
         try {
-            udpSocket = new DatagramSocket(serverPort);
-            udpSocket.setSoTimeout(UDP_RECEIVE_TIMEOUT);
-        } catch (SocketException e) {
+            transport.bindUdp(serverPort);
+        } catch (IOException e) {
             logger.error()
                 .title("Failed to create UDP socket for server")
                 .exception(e).build();
@@ -93,11 +113,12 @@ public class P2PNetworkManager {
             }
         }
 
-        running.set(true);
         isHost = true;
 
-        executor.submit(this::acceptTcpConnections);
-        executor.submit(this::handleUdpMessages);
+        int snapshotIntervalMs = PlayerRelay.config.snapshotIntervalMs;
+        snapshotTask = scheduler.scheduleAtFixedRate(this::sendSnapshots, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+        componentFlushTask = scheduler.scheduleAtFixedRate(this::flushComponents,
+            ComponentFilter.FLUSH_INTERVAL_MS, ComponentFilter.FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
 
         logger.info().message("Player Relay server started on port {}", serverPort).build();
     }
@@ -106,24 +127,34 @@ public class P2PNetworkManager {
         running.set(false);
         isHost = false;
 
+        if (snapshotTask != null) {
+            snapshotTask.cancel(false);
+            snapshotTask = null;
+        }
+        if (componentFlushTask != null) {
+            componentFlushTask.cancel(false);
+            componentFlushTask = null;
+        }
+        sentComponentSubscription = null;
+        snapshotAggregator.clear();
+        interestManager.clear();
+
         // Close all peer connections
         for (PeerConnection peer : connectedPeers) { peer.disconnect(); }
         connectedPeers.clear();
         connectedPeersByUdpId.clear();
+        inboundPipeline.clear();
+        messageHandler.getEventQueue().clear();
+        messageHandler.getInventorySubscriptions().clear();
+        ItemStackCache.clear();
+        PlayerPositionData.clearKeyframes();
         connectedPlayers.clear();
+        deduplicator.clear();
 
-        // Close server socket
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                logger.error().message("Error closing TCP server socket: {}", e.getMessage()).build();
-            }
-        }
-
-        if (udpSocket != null && !udpSocket.isClosed()) {
-            udpSocket.close();
-            udpSocket = null;
+        // Close server and UDP sockets
+        if (transport != null) {
+            transport.shutdown();
+            transport = null;
         }
 
         if (upnpManager != null && serverPort > 0) {
@@ -166,8 +197,9 @@ public class P2PNetworkManager {
             throw new Exception("Could not resolve host: " + host, e);
         }
 
-        if (serverSocket != null) {
-            int localPort = serverSocket.getLocalPort();
+        Transport transport = getOrCreateTransport();
+        if (transport.isTcpBound()) {
+            int localPort = transport.getTcpPort();
 
             if (localPort == port) {
                 for (InetAddress localAddr : InetAddress.getAllByName(InetAddress.getLocalHost().getHostName())) {
@@ -183,35 +215,28 @@ public class P2PNetworkManager {
             }
         }
 
-        if (udpSocket == null) {
+        if (!transport.isUdpBound()) {
             try {
-                udpSocket = new DatagramSocket();
-                udpSocket.setSoTimeout(UDP_RECEIVE_TIMEOUT);
-                executor.submit(this::handleUdpMessages);
-            } catch (SocketException e) {
+                transport.bindUdp(0);
+            } catch (IOException e) {
                 logger.warn()
                     .title("Failed to create UDP socket for client")
                     .exception(e).build();
             }
         }
 
-        Socket socket = new Socket();
-        PeerConnection peer = null;
         try {
-            socket.connect(socketAddress, PlayerRelay.config.peerConnectionTimeout);
-            peer = new PeerConnection(socket, this);
+            PeerConnection peer = new PeerConnection(transport.connect(socketAddress, PlayerRelay.config.peerConnectionTimeout), this);
             connectedPeers.add(peer);
 
             onConnectedToPeer(peer);
-            executor.submit(peer);
+            peer.start();
 
             logger.info().message("Connected to peer: {}:{} ({})", host, port, resolvedAddress.getHostAddress()).build();
             return peer;
         } catch (SocketTimeoutException e) {
-            cancelPeerConnection(peer, socket);
             throw new Exception("Connection timeout to " + host + ":" + port, e);
         } catch (IOException e) {
-            cancelPeerConnection(peer, socket);
             throw new Exception("Failed to connect to " + host + ":" + port, e);
         }
     }
@@ -229,66 +254,186 @@ public class P2PNetworkManager {
     }
 
     public void broadcastMessage(P2PMessage message) {
+        if (isHost && snapshotAggregator.absorb(message)) return;
         broadcastToAllPeers(message, null);
     }
 
+    private void sendSnapshots() {
+        try {
+            snapshotAggregator.sendSnapshots();
+        } catch (Exception e) {
+            // An exception would cancel the periodic task
+            logger.error().message("Failed to send world snapshots: {}", e.getMessage(), e).build();
+        }
+    }
+
+    private void flushComponents() {
+        try {
+            componentFilter.flush();
+        } catch (Exception e) {
+            // An exception would cancel the periodic task
+            logger.error().message("Failed to send held back player components: {}", e.getMessage(), e).build();
+        }
+    }
+
     private void broadcastToAllPeers(P2PMessage message, PeerConnection sender) {
+        // The host holds back movement of players a peer is not close to, and components a peer did not subscribe to
+        UUID positionPlayer = isHost ? InterestManager.positionUpdateOf(message) : null;
+        PlayerInfoPayload.EncodedLayout layout = (isHost && positionPlayer == null) ? componentFilter.layoutOf(message) : null;
+        long now = System.currentTimeMillis();
+
         for (PeerConnection peer : connectedPeers) {
-            if (peer != sender) { peer.sendMessage(message); }
+            if (peer == sender) continue;
+            if (positionPlayer != null && !interestManager.shouldSend(peer, positionPlayer, now)) continue;
+
+            P2PMessage forwarded = (layout != null) ? componentFilter.filter(peer, message, layout, now) : message;
+            if (forwarded.getType() == P2PMessageType.PLAYER_INFO) peer.sendPlayerUpdate(forwarded);
+            else peer.sendMessage(forwarded);
         }
     }
 
+    private void sendComponentSubscription(PeerConnection peer, ComponentSubscriptionPayload subscription) {
+        sentComponentSubscription = subscription.minIntervalsMs;
+        peer.sendMessage(subscription.message());
+    }
+
+    /** Tells the host again which components this client wants if that changed, e.g. after the player list was hidden */
+    public void refreshComponentSubscription() {
+        int[] sent = sentComponentSubscription;
+        if (isHost || sent == null) return;
+
+        ComponentSubscriptionPayload subscription = ComponentSubscriptionPayload.forLocalClient();
+        if (Arrays.equals(sent, subscription.minIntervalsMs)) return;
+
+        for (PeerConnection peer : connectedPeers) sendComponentSubscription(peer, subscription);
+    }
+
     private boolean shouldForwardMessage(P2PMessage message) { return isHost() && message.getType().shouldForward(); }
 
+    /**
+     * A relay-only host has no local player, so it only needs connection control messages and the player roster it hands to new peers.
+     * Inventories are still decoded so the host caches their item stacks and can answer the fetches of its peers.
+     */
+    private boolean shouldHandleLocally(P2PMessage message) {
+        if (!isRelayOnly()) return true;
+
+        return switch (message.getType()) {
+            case CHAT, PACKET -> false;
+            default -> true;
+        };
+    }
+
+    /**
+     * Inbound pipeline: dedup, then classify. Only the dedup check is atomic, after it forwarding and
+     * handling no longer hold any shared lock.
+     * <p>
+     * Point-to-point control messages are handled right away on the receiving thread, since they are
+     * cheap and their order matters per connection. Forwardable messages are forwarded from the receiving
+     * thread, which only enqueues them per peer, and handled on the lane of their origin or player, so updates
+     * from one player apply in order while different players are handled concurrently.
+     */
     public void handleMessage(PeerConnection sender, P2PMessage message) {
-        synchronized (recentMessageIds) {
-            if (!recentMessageIds.add(message.getId())) return; // Do not process if message id has been seen before, to stop packets from continuously looping through the network
+        MessageId messageId = message.getId();
+
+        // Do not process if message id has been seen before, to stop packets from continuously looping through the network.
+        // Only forwardable messages carry an id, the others are point-to-point and never loop
+        if (messageId != null && !deduplicator.markSeen(messageId)) return;
 
+        if (messageId == null) {
             messageHandler.handleMessage(message, sender);
-            if (shouldForwardMessage(message)) broadcastToAllPeers(message, sender);
+            return;
         }
-    }
 
-    private void handleUdpMessages() {
-        byte[] buffer = new byte[MAX_UDP_PACKET_SIZE];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        // Forward the received bytes as-is first, the payload is only decoded if this client uses it
+        if (shouldForwardMessage(message) && !snapshotAggregator.absorb(message)) broadcastToAllPeers(message, sender);
+        if (shouldHandleLocally(message)) {
+            inboundPipeline.dispatch(orderingKeyOf(message), () -> messageHandler.handleMessage(message, sender));
+        }
+    }
 
-        logger.info().message("UDP socket listening on port {}", udpSocket.getLocalPort()).build();
-        while (running.get() && udpSocket != null && !udpSocket.isClosed()) {
-            try {
-                udpSocket.receive(packet);
+    /**
+     * Updates and disconnects of a player are ordered per player rather than per origin, so those the host sends
+     * about the player and world snapshot entries run in order with the player's own updates. Anything else keeps
+     * the order of its origin.
+     */
+    public static int orderingKeyOf(P2PMessage message) {
+        return switch (message.getType()) {
+            case PLAYER_INFO, PLAYER_DISCONNECT -> {
+                ByteBuffer payload = message.getPayloadBuffer();
+                yield playerOrderingKey(new UUID(payload.getLong(0), payload.getLong(8)));
+            }
+            default -> message.getId().origin();
+        };
+    }
 
-                if (packet.getLength() < 2) {
-                    logger.warn().message("Received UDP packet too small to contain ID").build();
-                    continue;
-                }
+    private static int playerOrderingKey(UUID playerId) { return playerId.hashCode(); }
 
-                byte[] data = packet.getData();
-                short udpId = (short) ((data[0] & 0xFF) << 8 | (data[1] & 0xFF));
+    /** Runs a task about a player behind the updates of that player received so far */
+    public void dispatchForPlayer(UUID playerId, Runnable task) {
+        inboundPipeline.dispatch(playerOrderingKey(playerId), task);
+    }
 
-                PeerConnection senderPeer = connectedPeersByUdpId.get(udpId);
-                if (senderPeer == null) {
-                    logger.warn().message("Received UDP packet from unknown peer ID: {}", udpId).build();
-                    continue;
-                }
+    /** Called by the transport for every received datagram, the data array is reused after this returns */
+    public void onDatagramReceived(byte[] data, int length, InetSocketAddress source) {
+        if (length < 2) {
+            logger.warn().message("Received UDP packet too small to contain ID").build();
+            return;
+        }
 
-                byte[] messageData = new byte[packet.getLength() - 2];
-                System.arraycopy(data, 2, messageData, 0, messageData.length);
+        short udpId = (short) ((data[0] & 0xFF) << 8 | (data[1] & 0xFF));
 
-                P2PMessage message = P2PMessage.fromBytes(messageData, NetworkProtocol.UDP);
-                handleMessage(senderPeer, message);
+        PeerConnection senderPeer = connectedPeersByUdpId.get(udpId);
+        if (senderPeer == null) {
+            logger.warn().message("Received UDP packet from unknown peer ID: {}", udpId).build();
+            return;
+        }
 
-                logger.debug().message("Received UDP message from {}:{}, type: {}", packet.getAddress(), packet.getPort(), message.getType().name()).build();
-            } catch (SocketTimeoutException e) {
-                // Normal timeout, continue loop
-            } catch (IOException e) {
-                if (running.get()) {
-                    logger.error().message("Error receiving UDP packet: {}", e.getMessage()).build();
-                }
+        try {
+            if (length > UdpBatcher.UDP_ID_SIZE && data[UdpBatcher.UDP_ID_SIZE] == UdpBatcher.BATCH_MARKER) {
+                unpackUdpBatch(senderPeer, data, length, source);
+            } else {
+                handleUdpEntry(senderPeer, ByteBuffer.wrap(data, UdpBatcher.UDP_ID_SIZE, length - UdpBatcher.UDP_ID_SIZE), source);
             }
+        } catch (IOException e) {
+            logger.error().message("Error reading UDP packet: {}", e.getMessage()).build();
+        }
+    }
+
+    private void unpackUdpBatch(PeerConnection senderPeer, byte[] data, int length, InetSocketAddress source) throws IOException {
+        int offset = UdpBatcher.BATCH_HEADER_SIZE;
+
+        while (offset < length) {
+            if (offset + UdpBatcher.ENTRY_HEADER_SIZE > length) throw new IOException("Truncated UDP batch entry header");
+
+            int messageSize = (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+            offset += UdpBatcher.ENTRY_HEADER_SIZE;
+            if (messageSize == 0 || offset + messageSize > length) throw new IOException("Invalid UDP batch entry size: " + messageSize);
+
+            handleUdpEntry(senderPeer, ByteBuffer.wrap(data, offset, messageSize), source);
+            offset += messageSize;
         }
     }
 
+    private void handleUdpEntry(PeerConnection senderPeer, ByteBuffer entry, InetSocketAddress source) throws IOException {
+        byte marker = entry.get(entry.position());
+
+        if (marker == UdpFragmenter.FRAGMENT_MARKER) {
+            ByteBuffer reassembled = senderPeer.getFragmenter().onFragment(entry);
+            if (reassembled != null) handleUdpEntry(senderPeer, reassembled, source);
+        } else if (marker == ReliableUdpChannel.RELIABLE_MARKER) {
+            senderPeer.getReliableChannel().onFrame(entry);
+        } else {
+            handleUdpMessage(senderPeer, entry, source);
+        }
+    }
+
+    private void handleUdpMessage(PeerConnection senderPeer, ByteBuffer body, InetSocketAddress source) throws IOException {
+        P2PMessage message = P2PMessage.decode(body, NetworkProtocol.UDP);
+        handleMessage(senderPeer, message);
+
+        logger.debug().message("Received UDP message from {}, type: {}", source, message.getType().name()).build();
+    }
+
     private synchronized short assignUdpId(PeerConnection peer) {
         if (nextUdpId == 0) nextUdpId = 1;
 
@@ -307,32 +452,28 @@ public class P2PNetworkManager {
         return udpId;
     }
 
-    private void acceptTcpConnections() {
-        while (running.get() && !serverSocket.isClosed()) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                PeerConnection peer = new PeerConnection(clientSocket, this);
-                connectedPeers.add(peer);
-                executor.submit(peer);
+    /** Called by the transport for every accepted TCP connection */
+    public void onTcpAccepted(TcpChannel channel) {
+        PeerConnection peer = new PeerConnection(channel, this);
+        connectedPeers.add(peer);
+        peer.start();
 
-                onPeerAccepted(peer);
-            } catch (IOException e) {
-                if (running.get()) {
-                    logger.error().message("Error accepting connection: {}", e.getMessage()).build();
-                }
-            }
-        }
+        onPeerAccepted(peer);
     }
 
-    private void cancelPeerConnection(PeerConnection peer, Socket socket) {
-        if (peer != null) { peer.disconnect(); }
-        if (socket != null && !socket.isClosed()) {
-            try { socket.close(); } catch (Exception ignored) {}
+    private synchronized Transport getOrCreateTransport() {
+        if (transport == null) {
+            transport = switch (PlayerRelay.config.transportType) {
+                case NIO -> new NioTransport(this);
+                case BLOCKING -> new BlockingTransport(this, executor);
+            };
         }
+        return transport;
     }
 
     public void shutdown() {
         stopServer();
+        scheduler.shutdownNow();
         if (executor != null && !executor.isShutdown()) {
             executor.shutdown();
             try {
@@ -346,10 +487,11 @@ public class P2PNetworkManager {
         }
     }
 
-    private ServerSocket findAvailablePort(int startPort) {
+    private int bindAvailablePort(Transport transport, int startPort) {
         for (int port = startPort; port < startPort + 100; port++) {
             try {
-                return new ServerSocket(port);
+                transport.bindTcp(port);
+                return port;
             } catch (IOException e) {
                 // Port not available, try next
             }
@@ -367,7 +509,46 @@ public class P2PNetworkManager {
                 status.append("External IP: ").append(getExternalIp()).append("\n");
             }
         }
+        if (isHost) {
+            status.append("Snapshots: ").append(snapshotAggregator.getSentSnapshots()).append(" sent, ")
+                .append(snapshotAggregator.getConflatedUpdates()).append(" updates conflated\n");
+            status.append("Interest: ").append(interestManager.getHeldBackUpdates()).append(" position updates held back, ")
+                .append(interestManager.getInSightUpdates()).append(" skipped for players in sight\n");
+            status.append("Component subscriptions: ").append(componentFilter.getCutComponents()).append(" components cut, ")
+                .append(componentFilter.getFlushedComponents()).append(" sent later\n");
+        }
+        status.append("Item stack cache: ").append(ItemStackCache.size()).append(" stacks (")
+            .append(ItemStackCache.getCachedBytes() / 1024).append(" KiB), ")
+            .append(ItemStackCache.getHits()).append(" hits, ")
+            .append(ItemStackCache.getMisses()).append(" misses\n");
         status.append("Connected peers: ").append(getPeerCount());
+        for (PeerConnection peer : connectedPeers) {
+            OutboundQueue queue = peer.getOutboundQueue();
+            status.append("\n  ").append(peer.getRemoteAddress())
+                .append(" - queue: ").append(queue.size()).append("/").append(queue.getCapacity())
+                .append(" (peak ").append(queue.getHighWaterMark())
+                .append(", dropped ").append(queue.getDroppedMessages()).append(")");
+
+            PathMtuDiscovery mtuDiscovery = peer.getMtuDiscovery();
+            status.append(", datagram size: ").append(peer.getUdpDatagramBudget())
+                .append(mtuDiscovery.isDiscovered() ? " (discovered)" : " (default)");
+
+            UdpBatcher batcher = peer.getUdpBatcher();
+            ReliableUdpChannel reliable = peer.getReliableChannel();
+            UdpFragmenter fragmenter = peer.getFragmenter();
+            status.append(", udp: ").append(batcher.getBatchedMessages()).append(" messages in ")
+                .append(batcher.getSentDatagrams()).append(" datagrams")
+                .append(", reliable udp: ").append(reliable.getSentMessages()).append(" sent, ")
+                .append(reliable.getRetransmits()).append(" retransmitted, ")
+                .append(reliable.getFallbackMessages()).append(" resent via TCP")
+                .append(", fragments: ").append(fragmenter.getSentFragments()).append(" sent for ")
+                .append(fragmenter.getFragmentedEntries()).append(" messages, ")
+                .append(fragmenter.getReassembledEntries()).append(" reassembled, ")
+                .append(fragmenter.getDroppedEntries()).append(" incomplete (")
+                .append(fragmenter.getLostFragments()).append(" fragments lost)")
+                .append(", updates reordered ").append(peer.getReorderedUpdates())
+                .append(", missed ").append(peer.getMissedUpdates());
+        }
         return status.toString();
     }
 
@@ -388,9 +569,26 @@ public class P2PNetworkManager {
         };
     }
 
+    /**
+     * Returns the state of a player merged from all updates received so far, or the local player's state as last sent.
+     * Unlike {@link PlayerRelay#getConnectedPlayer(UUID)}, it never rebuilds the local state and may be called from any thread.
+     */
+    @Nullable
+    public PlayerInfoPayload getMergedPlayerInfo(UUID playerId) {
+        PlayerInfoPayload clientInfo = ClientCore.getClientInfo();
+        if (clientInfo != null && clientInfo.playerId.equals(playerId)) return clientInfo;
+
+        return connectedPlayers.get(playerId);
+    }
+
     public P2PMessageHandler getMessageHandler() { return messageHandler; }
+    public InboundPipeline getInboundPipeline() { return inboundPipeline; }
+    public InterestManager getInterestManager() { return interestManager; }
+    public ComponentFilter getComponentFilter() { return componentFilter; }
     public Set<PeerConnection> getConnectedPeers() { return connectedPeers; }
-    public DatagramSocket getUdpSocket() { return udpSocket; }
+    public Transport getTransport() { return transport; }
+    public ScheduledExecutorService getScheduler() { return scheduler; }
+    public int getUdpPort() { return (transport != null) ? transport.getUdpPort() : -1; }
 
     @Nullable
     public String getLocalIp() { return (upnpManager != null) ? upnpManager.getLocalIp() : null; }
@@ -401,13 +599,23 @@ public class P2PNetworkManager {
     public int getPeerCount() { return connectedPeers.size(); }
     public int getPort() { return serverPort; }
     public boolean isHost() { return isHost; }
+    public boolean isRelayOnly() { return isHost && PlayerRelay.config.relayOnly; }
+    public boolean isRunning() { return running.get(); }
 
     public void onPeerAccepted(PeerConnection peer) {
         peer.sendMessage(new RelayVersionPayload().message());
         assignUdpId(peer);
+        ClientCore.requestFullUpdate();
 
+        // The player roster is sent once the peer's capabilities are known, so it can be compressed.
+        // Player updates wait for it, they may be partial and only apply on top of the roster
+        peer.holdPlayerUpdatesForRoster();
+        peer.awaitPeerVersion().thenRun(() -> peer.sendRoster(() -> sendPlayerRoster(peer)));
+    }
+
+    private void sendPlayerRoster(PeerConnection peer) {
         // Send info about host player
-        PlayerInfoPayload clientInfo = ClientCore.updateClientInfo();
+        PlayerInfoPayload clientInfo = isRelayOnly() ? null : ClientCore.updateClientInfo();
         if (clientInfo != null) {
             clientInfo.setFlag(PlayerInfoPayload.FLAGS.NEW_CONNECTION, false);
             peer.sendMessage(clientInfo.message());
@@ -424,6 +632,10 @@ public class P2PNetworkManager {
         // Wait for version payload before doing anything
         peer.requireVersionHandshake().whenComplete((ok, err) -> {
             if (err != null) return;
+            // Reply with this client's version, so the host knows its capabilities
+            peer.sendMessage(new RelayVersionPayload().message());
+            sendComponentSubscription(peer, ComponentSubscriptionPayload.forLocalClient());
+            EntityVisibilityTracker.reset();
             assignUdpId(peer);
 
             // Send info about client player to host
@@ -443,13 +655,12 @@ public class P2PNetworkManager {
             connectedPeersByUdpId.remove(peer.assignedUdpId);
         }
 
+        // Players are removed from announcedPlayers as soon as their disconnect is received, so these are still connected
         for (UUID playerId : peer.announcedPlayers) {
-            if (!connectedPlayers.containsKey(playerId)) continue;
-
             PacketByteBuf uuidBuf = new PacketByteBuf(Unpooled.buffer());
             uuidBuf.writeUuid(playerId);
 
-            handleMessage(peer, new P2PMessage(P2PMessageType.PLAYER_DISCONNECT, uuidBuf));
+            handleMessage(peer, new P2PMessage(P2PMessageType.PLAYER_DISCONNECT, uuidBuf, NetworkProtocol.RELIABLE_UDP));
         }
         logger.info().message("Peer disconnected. Active connections: {}", connectedPeers.size()).build();
     }
@@ -0,0 +1,111 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.PlayerRelay;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the largest datagram that reaches a peer, by binary searching with padded {@link dev.hintsystem.playerrelay.payload.UdpPingPayload} probes.
+ * <p>
+ * The transports set the don't-fragment bit where the platform supports it, so a probe above the path MTU is
+ * dropped instead of being fragmented on the way. Every size is tried {@value #ATTEMPTS_PER_SIZE} times before
+ * it counts as too large. Until the search finishes, {@link P2PNetworkManager#UDP_DATAGRAM_BUDGET} is used.
+ */
+public class PathMtuDiscovery {
+    /** Smallest datagram every IPv4 path has to carry */
+    public static final int MIN_DATAGRAM_SIZE = 508;
+    /** Largest datagram that fits a 1500 byte Ethernet MTU after the IPv4 and UDP headers */
+    public static final int MAX_DATAGRAM_SIZE = 1472;
+
+    private static final int PRECISION = 8;
+    private static final int ATTEMPTS_PER_SIZE = 2;
+
+    private final PeerConnection peer;
+    private final P2PNetworkManager manager;
+
+    private volatile int datagramBudget = P2PNetworkManager.UDP_DATAGRAM_BUDGET;
+    private volatile boolean discovered = false;
+
+    private boolean searching = false;
+    // Largest size known to arrive and smallest size known to be dropped
+    private int low, high;
+    private int probeSize;
+    private int probeSequence = 0;
+    private int attempts;
+
+    public PathMtuDiscovery(PeerConnection peer, P2PNetworkManager manager) {
+        this.peer = peer;
+        this.manager = manager;
+    }
+
+    /** Starts a new search, the current budget stays in use until it finishes */
+    public synchronized void start() {
+        if (searching) return;
+        searching = true;
+
+        low = MIN_DATAGRAM_SIZE;
+        high = MAX_DATAGRAM_SIZE + 1;
+
+        // Most paths carry the full size, so try that first
+        probe(MAX_DATAGRAM_SIZE);
+    }
+
+    private void probe(int size) {
+        probeSize = size;
+        attempts = 0;
+        sendProbe();
+    }
+
+    private void sendProbe() {
+        int sequence = ++probeSequence;
+        attempts++;
+
+        try {
+            peer.sendUdpProbe(sequence, probeSize);
+        } catch (IOException e) {
+            // The local interface refused the size, which counts like a dropped probe
+            manager.logger.debug().message("UDP probe of {} bytes not sent: {}", probeSize, e.getMessage()).build();
+        }
+
+        manager.getScheduler().schedule(() -> onProbeTimeout(sequence),
+            PlayerRelay.config.udpPingTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void onProbeResponse(int size) {
+        if (!searching || size != probeSize) return;
+
+        low = size;
+        next();
+    }
+
+    private synchronized void onProbeTimeout(int sequence) {
+        if (!searching || sequence != probeSequence) return;
+
+        if (attempts < ATTEMPTS_PER_SIZE) {
+            sendProbe();
+            return;
+        }
+
+        high = probeSize;
+        next();
+    }
+
+    private void next() {
+        if (high - low > PRECISION) {
+            probe((low + high) / 2);
+            return;
+        }
+
+        searching = false;
+        discovered = true;
+        datagramBudget = low;
+        peer.onPathMtuDiscovered(low);
+    }
+
+    public synchronized void stop() { searching = false; }
+
+    /** Largest datagram to send to the peer, including the UDP id */
+    public int getDatagramBudget() { return datagramBudget; }
+    public boolean isDiscovered() { return discovered; }
+}
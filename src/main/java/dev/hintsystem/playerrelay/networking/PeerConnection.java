@@ -6,27 +6,53 @@ import dev.hintsystem.playerrelay.logging.PlayerRelayLogger;
 import dev.hintsystem.playerrelay.logging.LogLocation;
 import dev.hintsystem.playerrelay.networking.message.P2PMessage;
 import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+import dev.hintsystem.playerrelay.networking.transport.FrameCodec;
+import dev.hintsystem.playerrelay.networking.transport.TcpChannel;
+import dev.hintsystem.playerrelay.networking.transport.Transport;
+import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
 import dev.hintsystem.playerrelay.payload.RelayVersionPayload;
 import dev.hintsystem.playerrelay.payload.UdpHandshakePayload;
 import dev.hintsystem.playerrelay.payload.UdpPingPayload;
 
+import net.minecraft.client.MinecraftClient;
+
+import org.jetbrains.annotations.Nullable;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PeerConnection {
+    /** How long a reliable message sent from a network thread may wait for space in a full outbound queue */
+    private static final long OUTBOUND_BLOCK_TIMEOUT_MS = 250;
+
+    /** Scratch space for datagrams sent outside of a batch, the encoded message is copied once behind the 2-byte UDP id */
+    private static final ThreadLocal<byte[]> UDP_SEND_BUFFER = ThreadLocal.withInitial(() -> new byte[P2PNetworkManager.MAX_UDP_PACKET_SIZE]);
 
-public class PeerConnection implements Runnable {
     private final PlayerRelayLogger logger;
 
-    private final Socket tcpSocket;
-    private final DataInputStream tcpInput;
-    private final DataOutputStream tcpOutput;
+    private final TcpChannel tcpChannel;
     private final P2PNetworkManager manager;
+    private final OutboundQueue outboundQueue = new OutboundQueue(PlayerRelay.config.outboundQueueCapacity);
+    private final UdpBatcher udpBatcher;
+    private final ReliableUdpChannel reliableChannel;
+    private final UdpFragmenter fragmenter = new UdpFragmenter();
+    private final PathMtuDiscovery mtuDiscovery;
+    /** Player updates forwarded to a peer that just joined the host, sent once it got the player roster. Null once sent */
+    @Nullable
+    private List<P2PMessage> heldPlayerUpdates = null;
+    private final Object heldPlayerUpdatesLock = new Object();
+    /** Reliable UDP messages that were never acknowledged, sent over TCP ahead of the outbound queue */
+    private final Queue<P2PMessage> tcpFallback = new ConcurrentLinkedQueue<>();
     private volatile boolean connected = true;
 
     private final CompletableFuture<RelayVersionPayload> versionHandshake = new CompletableFuture<>();
     private ScheduledFuture<?> versionHandshakeTimeout;
     private volatile boolean versionHandshakeRequired = false;
+    private volatile int peerCapabilities = 0;
     private final Queue<P2PMessage> pendingIncomingMessages = new ConcurrentLinkedQueue<>();
 
     public Short assignedUdpId;
@@ -36,29 +62,44 @@ public class PeerConnection implements Runnable {
     private volatile boolean udpHealthy = false;
     private final Map<Integer, Long> pendingPings = new ConcurrentHashMap<>();
     private int pingSequence = 0;
-    private final ScheduledExecutorService healthCheckExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledFuture<?> healthCheckTask;
     private int consecutiveFailedUdpPings = 0;
 
     public final Set<UUID> announcedPlayers = ConcurrentHashMap.newKeySet();
-
-    public PeerConnection(Socket socket, P2PNetworkManager manager) throws IOException {
+    /** Player indices of world snapshots known on this connection, see {@link WorldSnapshotAggregator} */
+    public final Map<Integer, UUID> playerIndices = new ConcurrentHashMap<>();
+    /** When the last position update of a player outside this peer's interest was sent, see {@link InterestManager} */
+    public final Map<UUID, Long> lastFarUpdates = new ConcurrentHashMap<>();
+    /** Players this peer sees as entities through the game server, their movement is not relayed to it */
+    public volatile Set<UUID> visiblePlayers = Set.of();
+    /** Player components this peer asked the host for, see {@link ComponentFilter} */
+    public final ComponentFilter.PeerState componentSubscription = new ComponentFilter.PeerState();
+
+    private final Map<UUID, Integer> lastUpdateSequences = new ConcurrentHashMap<>();
+    private final AtomicLong reorderedUpdates = new AtomicLong();
+    private final AtomicLong missedUpdates = new AtomicLong();
+
+    public PeerConnection(TcpChannel channel, P2PNetworkManager manager) {
         this.logger = manager.logger.withLocation(LogLocation.PEER_CONNECTION);
 
-        this.tcpSocket = socket;
+        this.tcpChannel = channel;
         this.manager = manager;
-        this.tcpOutput = new DataOutputStream(socket.getOutputStream());
-        this.tcpOutput.flush();
-        this.tcpInput = new DataInputStream(socket.getInputStream());
+        this.udpBatcher = new UdpBatcher(this, manager);
+        this.reliableChannel = new ReliableUdpChannel(this, manager);
+        this.mtuDiscovery = new PathMtuDiscovery(this, manager);
 
-        healthCheckExecutor.scheduleAtFixedRate(this::performUdpHealthCheck,
+        healthCheckTask = manager.getScheduler().scheduleAtFixedRate(this::performUdpHealthCheck,
             PlayerRelay.config.udpPingTimeoutMs, PlayerRelay.config.udpPingIntervalMs, TimeUnit.MILLISECONDS);
     }
 
+    /** Starts receiving messages from the peer, must be called once the peer is registered with the manager */
+    public void start() { tcpChannel.open(this); }
+
     public CompletableFuture<RelayVersionPayload> requireVersionHandshake() {
         if (versionHandshakeRequired) return versionHandshake;
         versionHandshakeRequired = true;
 
-        this.versionHandshakeTimeout = healthCheckExecutor.schedule(this::onVersionHandshakeTimeout,
+        this.versionHandshakeTimeout = manager.getScheduler().schedule(this::onVersionHandshakeTimeout,
             PlayerRelay.config.peerConnectionTimeout, TimeUnit.MILLISECONDS);
 
         versionHandshake.whenComplete((result, throwable) -> {
@@ -84,9 +125,22 @@ public class PeerConnection implements Runnable {
                 .context("version", versionPayload).build();
 
             versionHandshake.completeExceptionally(new IllegalStateException(errTitle));
-        } else { versionHandshake.complete(versionPayload); }
+        } else {
+            peerCapabilities = versionPayload.capabilities;
+            versionHandshake.complete(versionPayload);
+        }
+    }
+
+    /**
+     * Completes once the peer's version was received, or with null if none arrives in time.
+     * Unlike {@link #requireVersionHandshake()}, the peer is not disconnected without one.
+     */
+    public CompletableFuture<RelayVersionPayload> awaitPeerVersion() {
+        return versionHandshake.copy().completeOnTimeout(null, PlayerRelay.config.peerConnectionTimeout, TimeUnit.MILLISECONDS);
     }
 
+    public boolean hasCapability(int capability) { return (peerCapabilities & capability) != 0; }
+
     private void onVersionHandshakeTimeout() {
         if (versionHandshake.isDone()) return;
 
@@ -140,7 +194,7 @@ public class PeerConnection implements Runnable {
             UdpPingPayload ping = new UdpPingPayload(timestamp, sequence, false);
             sendUdpMessage(ping.message());
 
-            healthCheckExecutor.schedule(() -> checkPingTimeout(sequence),
+            manager.getScheduler().schedule(() -> checkPingTimeout(sequence),
                 PlayerRelay.config.udpPingTimeoutMs, TimeUnit.MILLISECONDS);
 
         } catch (Exception e) {
@@ -169,8 +223,9 @@ public class PeerConnection implements Runnable {
 
     public void onUdpPingReceived(UdpPingPayload ping) {
         if (!ping.isResponse()) {
-            UdpPingPayload pong = new UdpPingPayload(ping.getTimestamp(), ping.getSequenceNumber(), true);
-            try { sendTcpMessage(pong.message()); } catch (Exception ignored) {}
+            sendMessage(ping.response().message());
+        } else if (ping.isProbe()) {
+            mtuDiscovery.onProbeResponse(ping.getProbeSize());
         } else {
 
             Long sentTime = pendingPings.remove(ping.getSequenceNumber());
@@ -182,85 +237,231 @@ public class PeerConnection implements Runnable {
                     udpHealthy = true;
                     logger.info().message("UDP connection to {} restored (RTT: {}ms)",
                         getRemoteAddress(), roundTripTime).build();
+
+                    // The path may have changed while UDP was down
+                    mtuDiscovery.start();
                 }
             }
         }
     }
 
-    @Override
-    public void run() {
-        try {
-            while (connected && !tcpSocket.isClosed()) {
-                P2PMessage message = P2PMessage.readFrom(tcpInput, NetworkProtocol.TCP);
+    public void onTcpMessage(P2PMessage message) {
+        if (connected && shouldProcessMessage(message)) manager.handleMessage(this, message);
+    }
 
-                if (shouldProcessMessage(message)) manager.handleMessage(this, message);
-            }
-        } catch (Exception e) {
-            if (connected) logger.error().message("Error in peer connection: {}", e.getMessage()).build();
-        } finally {
-            if (connected) disconnect();
-        }
+    public void onTcpClosed(@Nullable Exception e) {
+        if (!connected) return;
+
+        if (e != null) logger.error().message("Error in peer connection: {}", e.getMessage()).build();
+        disconnect();
     }
 
     public void sendMessage(P2PMessage message) {
-        if (!connected || tcpSocket.isClosed()) return;
+        if (!connected || !tcpChannel.isOpen()) return;
         if ((versionHandshakeRequired && !versionHandshake.isDone()) || versionHandshake.isCompletedExceptionally()) return;
 
-        try {
-            if (message.getPreferredProtocol() == NetworkProtocol.UDP && isUdpHealthy()) {
-                sendUdpMessage(message);
-            } else {
-                sendTcpMessage(message);
+        // Never make the client thread wait on a slow peer, a full queue of reliable messages means it is hopelessly behind
+        long blockTimeoutMs = canBlockOnQueue() ? OUTBOUND_BLOCK_TIMEOUT_MS : 0;
+
+        if (!outboundQueue.offer(message, blockTimeoutMs)) {
+            logger.warn().message("Outbound queue to {} is full ({} messages), disconnecting",
+                getRemoteAddress(), outboundQueue.getCapacity()).build();
+            disconnect();
+            return;
+        }
+
+        tcpChannel.requestFlush();
+    }
+
+    /** Holds back player updates sent with {@link #sendPlayerUpdate} until {@link #sendRoster} */
+    public void holdPlayerUpdatesForRoster() {
+        synchronized (heldPlayerUpdatesLock) { heldPlayerUpdates = new ArrayList<>(); }
+    }
+
+    /**
+     * Sends a player update, or holds it back while the peer waits for the player roster. Otherwise a partial update
+     * could arrive before the roster entry it applies to, and the roster entry would be rejected as older.
+     */
+    public void sendPlayerUpdate(P2PMessage message) {
+        synchronized (heldPlayerUpdatesLock) {
+            if (heldPlayerUpdates != null) {
+                heldPlayerUpdates.add(message);
+                return;
             }
-        } catch (IOException e) {
-            logger.error().message("Failed to send message via {}: {}",
-                message.getPreferredProtocol(), e.getMessage()).build();
+        }
+        sendMessage(message);
+    }
+
+    /** Sends the player roster, then the player updates held back until now */
+    public void sendRoster(Runnable sendRoster) {
+        synchronized (heldPlayerUpdatesLock) {
+            sendRoster.run();
+
+            if (heldPlayerUpdates != null) heldPlayerUpdates.forEach(this::sendMessage);
+            heldPlayerUpdates = null;
+        }
+    }
 
-            if (message.getPreferredProtocol() == NetworkProtocol.UDP) {
+    /**
+     * Takes queued messages until one has to go over TCP and returns its frame, or null once the queue is empty.
+     * Messages routed over UDP are sent directly, falling back to TCP if the datagram cannot be sent.
+     * Called by the channel from its writer thread.
+     */
+    @Nullable
+    public ByteBuffer pollTcpFrame() {
+        P2PMessage fallback = tcpFallback.poll();
+        if (fallback != null) return frameFor(fallback);
+
+        P2PMessage message;
+        while ((message = outboundQueue.poll()) != null) {
+            NetworkProtocol protocol = message.getPreferredProtocol();
+
+            if (protocol == NetworkProtocol.RELIABLE_UDP && PlayerRelay.config.reliableUdp && isUdpHealthy()) {
+                if (reliableChannel.send(message)) continue;
+            } else if (protocol == NetworkProtocol.UDP && isUdpHealthy()) {
                 try {
-                    sendTcpMessage(message);
-                } catch (IOException tcpE) {
-                    logger.error().message("TCP fallback also failed: {}", tcpE.getMessage()).build();
+                    sendUdpEntry(encodedBodyFor(message));
+                    continue;
+                } catch (IOException e) {
+                    logger.error().message("Failed to send message via UDP, falling back to TCP: {}", e.getMessage()).build();
                 }
             }
+
+            return frameFor(message);
         }
+        return null;
     }
 
-    private void sendTcpMessage(P2PMessage message) throws IOException {
-        synchronized (tcpOutput) {
-            message.writeTo(tcpOutput);
-            tcpOutput.flush();
-        }
+    private ByteBuffer frameFor(P2PMessage message) {
+        // Only the host's greeting uses the legacy handshake layout, the reply is read like any other frame
+        if (message.getType() == P2PMessageType.RELAY_VERSION && versionHandshakeRequired) return FrameCodec.encodeFramed(message);
+
+        return usesCompression() ? message.getCompressedFrame(PlayerRelay.config.compressionThreshold) : message.getFrame();
     }
 
+    /** Returns the encoded message as sent to this peer over UDP, compressed if the peer supports it */
+    ByteBuffer encodedBodyFor(P2PMessage message) {
+        return usesCompression() ? message.getCompressedBody(PlayerRelay.config.compressionThreshold) : message.getEncodedBody();
+    }
+
+    private boolean usesCompression() {
+        return PlayerRelay.config.compressionThreshold > 0 && hasCapability(RelayVersionPayload.CAPABILITY_COMPRESSION);
+    }
+
+    private boolean canBlockOnQueue() {
+        Transport transport = manager.getTransport();
+        return !MinecraftClient.getInstance().isOnThread() && (transport == null || !transport.isEventLoopThread());
+    }
+
+    public boolean hasPendingOutbound() { return !outboundQueue.isEmpty() || !tcpFallback.isEmpty(); }
+    public OutboundQueue getOutboundQueue() { return outboundQueue; }
+    public UdpBatcher getUdpBatcher() { return udpBatcher; }
+    public ReliableUdpChannel getReliableChannel() { return reliableChannel; }
+    public UdpFragmenter getFragmenter() { return fragmenter; }
+
+    /** Largest datagram sent to this peer, found by path MTU discovery */
+    public int getUdpDatagramBudget() { return mtuDiscovery.getDatagramBudget(); }
+    public PathMtuDiscovery getMtuDiscovery() { return mtuDiscovery; }
+
+    /** Sends a path MTU probe padded to a datagram of the given size */
+    void sendUdpProbe(int sequence, int datagramSize) throws IOException {
+        int paddingLength = datagramSize - UdpBatcher.UDP_ID_SIZE - 1 - UdpPingPayload.BASE_SIZE;
+        sendUdpMessage(UdpPingPayload.probe(System.currentTimeMillis(), sequence, datagramSize, paddingLength).message());
+    }
+
+    void onPathMtuDiscovered(int datagramSize) {
+        logger.info().message("Largest UDP datagram to {} is {} bytes", getRemoteAddress(), datagramSize).build();
+    }
+
+    /** Sends a message in its own datagram right away, for messages whose timing matters such as pings */
     private void sendUdpMessage(P2PMessage message) throws IOException {
         if (peerUdpId == null) {
             throw new IOException("UDP handshake not complete");
         }
 
-        byte[] messageData = message.toBytes();
+        ByteBuffer body = message.getEncodedBody();
+        int messageSize = body.remaining();
 
-        // Check if message is too large for UDP (typical MTU is 1500 bytes)
-        if (messageData.length > 1450) {
-            throw new IOException(String.format("UDP message too large (%dB), exceeds MTU limit", messageData.length));
+        // Path MTU probes are larger than the current budget on purpose
+        if (messageSize > UdpBatcher.maxMessageSize(PathMtuDiscovery.MAX_DATAGRAM_SIZE)) {
+            throw new IOException(String.format("UDP message too large (%dB), exceeds MTU limit", messageSize));
         }
 
-        byte[] udpData = new byte[messageData.length + 2];
+        byte[] udpData = UDP_SEND_BUFFER.get();
         udpData[0] = (byte) ((peerUdpId >> 8) & 0xFF); // High byte
         udpData[1] = (byte) (peerUdpId & 0xFF);        // Low byte
-        System.arraycopy(messageData, 0, udpData, 2, messageData.length);
+        body.get(udpData, 2, messageSize);
+
+        manager.getTransport().sendDatagram(udpData, 0, messageSize + 2, getUdpAddress());
+    }
+
+    /** Adds a message or reliable frame to the next datagram to this peer, split into fragments if it does not fit into one */
+    void sendUdpEntry(ByteBuffer entry) throws IOException {
+        if (peerUdpId == null) throw new IOException("UDP handshake not complete");
 
-        DatagramPacket packet = new DatagramPacket(
-            udpData, udpData.length, tcpSocket.getInetAddress(), hasUdpPort() ? peerUdpPort : tcpSocket.getPort()
-        );
+        int budget = getUdpDatagramBudget();
+        InetSocketAddress target = getUdpAddress();
+
+        if (entry.remaining() <= UdpBatcher.maxMessageSize(budget)) {
+            udpBatcher.add(entry, peerUdpId, target, budget, PlayerRelay.config.udpBatchWindowMs);
+            return;
+        }
+
+        for (ByteBuffer fragment : fragmenter.split(entry, budget)) {
+            udpBatcher.add(fragment, peerUdpId, target, budget, PlayerRelay.config.udpBatchWindowMs);
+        }
+    }
+
+    /** Resends reliable UDP messages the peer never acknowledged over TCP, in their original order */
+    void onReliableUdpFailed(List<P2PMessage> messages) {
+        if (!connected) return;
+
+        if (udpHealthy) {
+            udpHealthy = false;
+            logger.warn().message("Reliable UDP messages to {} were not acknowledged, resending {} over TCP",
+                getRemoteAddress(), messages.size()).build();
+        }
+
+        tcpFallback.addAll(messages);
+        tcpChannel.requestFlush();
+    }
 
-        manager.getUdpSocket().send(packet);
+    void onUdpSendFailed(IOException e) {
+        logger.error().message("Failed to send UDP messages: {}", e.getMessage()).build();
     }
 
+    /**
+     * Tracks the update sequence of players received from this peer. Updates arriving after a newer one count
+     * as reordered, gaps count as missed. Missed includes updates the host conflated into world snapshots.
+     */
+    public void recordUpdateSequence(PlayerInfoPayload update) {
+        int sequence = update.getSequence();
+        if (sequence == 0) return;
+
+        lastUpdateSequences.compute(update.playerId, (playerId, last) -> {
+            // A new connection restarts the player's sequence
+            if (last == null || update.hasFlag(PlayerInfoPayload.FLAGS.NEW_CONNECTION)) return sequence;
+
+            int gap = sequence - last;
+            if (gap <= 0) {
+                reorderedUpdates.incrementAndGet();
+                return last;
+            }
+
+            if (gap > 1) missedUpdates.addAndGet(gap - 1);
+            return sequence;
+        });
+    }
+
+    public void forgetUpdateSequence(UUID playerId) { lastUpdateSequences.remove(playerId); }
+
+    public long getReorderedUpdates() { return reorderedUpdates.get(); }
+    public long getMissedUpdates() { return missedUpdates.get(); }
+
     public void assignUdpId(short id) {
         this.assignedUdpId = id;
-        if (!manager.isHost() || manager.getPort() != manager.getUdpSocket().getLocalPort()) {
-            sendMessage(new UdpHandshakePayload(id, manager.getUdpSocket().getLocalPort()).message());
+        if (!manager.isHost() || manager.getPort() != manager.getUdpPort()) {
+            sendMessage(new UdpHandshakePayload(id, manager.getUdpPort()).message());
         } else {
             sendMessage(new UdpHandshakePayload(id).message());
         }
@@ -271,36 +472,34 @@ public class PeerConnection implements Runnable {
         this.peerUdpPort = udpPort;
     }
 
-    public void disconnect() {
+    public synchronized void disconnect() {
+        if (!connected) return;
+        connected = false;
+
         if (versionHandshakeTimeout != null && !versionHandshakeTimeout.isDone()) {
             versionHandshakeTimeout.cancel(false);
         }
+        healthCheckTask.cancel(false);
+        mtuDiscovery.stop();
 
-        if (!healthCheckExecutor.isShutdown()) {
-            healthCheckExecutor.shutdown();
-            try {
-                if (!healthCheckExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
-                    healthCheckExecutor.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                healthCheckExecutor.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
-        }
-
-        try {
-            if (tcpInput != null) tcpInput.close();
-            if (tcpOutput != null) tcpOutput.close();
-            if (tcpSocket != null && !tcpSocket.isClosed()) tcpSocket.close();
-        } catch (IOException e) {
-            logger.error().message("Error closing connection: {}", e.getMessage()).build();
-        }
+        tcpChannel.close();
+        outboundQueue.clear();
+        udpBatcher.clear();
+        reliableChannel.close();
+        fragmenter.clear();
+        tcpFallback.clear();
+        synchronized (heldPlayerUpdatesLock) { heldPlayerUpdates = null; }
 
         manager.onPeerDisconnected(this);
-        connected = false;
     }
 
     public boolean isUdpHealthy() { return udpHealthy && peerUdpId != null; }
-    public SocketAddress getRemoteAddress() { return tcpSocket.getRemoteSocketAddress(); }
+    public InetSocketAddress getRemoteAddress() { return tcpChannel.getRemoteAddress(); }
+
+    private InetSocketAddress getUdpAddress() {
+        InetSocketAddress remote = getRemoteAddress();
+        return new InetSocketAddress(remote.getAddress(), hasUdpPort() ? peerUdpPort : remote.getPort());
+    }
+
     private boolean hasUdpPort() { return peerUdpPort > 0; }
 }
@@ -0,0 +1,344 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.networking.message.P2PMessage;
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reliable, ordered delivery over the UDP socket, so reliable messages to a peer no longer wait behind each other in one TCP stream.
+ * <p>
+ * Messages are numbered per {@link Stream} and every stream is delivered in order on its own, so a lost inventory
+ * response never delays a ping. Receivers acknowledge the next sequence they expect plus a bitmask of the
+ * {@value #SACK_BITS} sequences after it, senders only retransmit what is missing.
+ * <p>
+ * Frames are sent as UDP batch entries, {@code [RELIABLE_MARKER][DATA][stream][short seq][message]}
+ * and {@code [RELIABLE_MARKER][ACK][stream][short nextExpected][int received]}. If a message is not acknowledged after
+ * {@value #MAX_ATTEMPTS} attempts, the stream's unacknowledged messages are resent over TCP as
+ * {@link P2PMessageType#RELIABLE_FALLBACK} messages, {@code [stream][short seq][message]}. They keep their sequence,
+ * so the receiver drops those it already got over UDP and only its acknowledgement was lost.
+ */
+public class ReliableUdpChannel {
+    /** Never a valid message type id, marks a UDP entry carrying a reliable frame */
+    public static final byte RELIABLE_MARKER = (byte) 0xFE;
+    private static final byte DATA = 0, ACK = 1;
+
+    public static final int DATA_HEADER_SIZE = 5;
+    private static final int FALLBACK_HEADER_SIZE = 3;
+    private static final int ACK_SIZE = 9;
+
+    /** Unacknowledged messages in flight per stream, also the receiver's reorder window */
+    private static final int WINDOW = 256;
+    private static final int SACK_BITS = 32;
+    private static final int MAX_ATTEMPTS = 8;
+
+    /** Acks are collected and retransmits checked on every tick */
+    private static final long TICK_MS = 20;
+    private static final long INITIAL_RTT_MS = 200;
+    private static final long MIN_RTO_MS = 50, MAX_RTO_MS = 2000;
+
+    public enum Stream {
+        /** Player updates and control messages, which must stay in order with each other */
+        PLAYERS,
+        /** Mod packets such as ping wheel pings */
+        PACKETS,
+        /** Inventory requests and responses */
+        INVENTORY;
+
+        public static Stream of(P2PMessageType type) {
+            return switch (type) {
+                case PACKET -> PACKETS;
+                case PLAYER_INVENTORY -> INVENTORY;
+                default -> PLAYERS;
+            };
+        }
+    }
+
+    private static class Pending {
+        final P2PMessage message;
+        long sentAt;
+        int attempts = 0;
+
+        Pending(P2PMessage message) { this.message = message; }
+    }
+
+    private static class StreamState {
+        final byte id;
+
+        // Sending side, pending is in sequence order
+        int nextSeq = 0;
+        final LinkedHashMap<Integer, Pending> pending = new LinkedHashMap<>();
+        final ArrayDeque<P2PMessage> waiting = new ArrayDeque<>();
+
+        // Receiving side
+        int nextExpected = 0;
+        final Map<Integer, P2PMessage> received = new HashMap<>();
+        boolean ackDue = false;
+
+        StreamState(int id) { this.id = (byte) id; }
+    }
+
+    private final PeerConnection peer;
+    private final P2PNetworkManager manager;
+    private final StreamState[] streams = new StreamState[Stream.values().length];
+    private final ScheduledFuture<?> tickTask;
+
+    private long smoothedRttMs = 0;
+    private long sentMessages = 0;
+    private long retransmits = 0;
+    private long fallbackMessages = 0;
+
+    public ReliableUdpChannel(PeerConnection peer, P2PNetworkManager manager) {
+        this.peer = peer;
+        this.manager = manager;
+        for (int i = 0; i < streams.length; i++) streams[i] = new StreamState(i);
+
+        tickTask = manager.getScheduler().scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns the largest message that fits into one reliable frame, frames larger than a datagram are sent in fragments */
+    public static int maxMessageSize(int payloadBudget) { return UdpFragmenter.maxEntrySize(payloadBudget) - DATA_HEADER_SIZE; }
+
+    private static int seq(int value) { return value & 0xFFFF; }
+    /** Distance from b to a in wrapping sequence space, negative if a is before b */
+    private static int seqDiff(int a, int b) { return (short) (a - b); }
+
+    /**
+     * Sends a message on its stream.
+     * @return false if the message is too large even for fragments, it has to go over TCP then
+     */
+    public boolean send(P2PMessage message) {
+        if (peer.encodedBodyFor(message).remaining() > maxMessageSize(peer.getUdpDatagramBudget())) return false;
+
+        List<P2PMessage> fallback = null;
+        synchronized (this) {
+            StreamState state = streams[Stream.of(message.getType()).ordinal()];
+
+            if (state.pending.size() >= WINDOW) {
+                state.waiting.add(message);
+
+                // The peer has not acknowledged anything for a while, send the whole stream over TCP to keep it in order
+                if (state.waiting.size() > WINDOW) fallback = giveUp(state);
+            } else {
+                int sequence = state.nextSeq;
+                transmit(state, sequence, newPending(state, message));
+            }
+        }
+
+        if (fallback != null) peer.onReliableUdpFailed(fallback);
+        return true;
+    }
+
+    private Pending newPending(StreamState state, P2PMessage message) {
+        Pending pending = new Pending(message);
+        state.pending.put(state.nextSeq, pending);
+        state.nextSeq = seq(state.nextSeq + 1);
+        sentMessages++;
+        return pending;
+    }
+
+    private void transmit(StreamState state, int sequence, Pending pending) {
+        ByteBuffer body = peer.encodedBodyFor(pending.message);
+        ByteBuffer frame = ByteBuffer.allocate(DATA_HEADER_SIZE + body.remaining())
+            .put(RELIABLE_MARKER).put(DATA).put(state.id)
+            .putShort((short) sequence)
+            .put(body)
+            .flip();
+
+        pending.sentAt = System.currentTimeMillis();
+        pending.attempts++;
+
+        try {
+            peer.sendUdpEntry(frame);
+        } catch (IOException e) {
+            // Counts as lost, the message is retransmitted on a later tick
+            peer.onUdpSendFailed(e);
+        }
+    }
+
+    private void sendAck(StreamState state) {
+        int received = 0;
+        for (int i = 0; i < SACK_BITS; i++) {
+            if (state.received.containsKey(seq(state.nextExpected + 1 + i))) received |= 1 << i;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(ACK_SIZE)
+            .put(RELIABLE_MARKER).put(ACK).put(state.id)
+            .putShort((short) state.nextExpected)
+            .putInt(received)
+            .flip();
+        state.ackDue = false;
+
+        try {
+            peer.sendUdpEntry(frame);
+        } catch (IOException e) {
+            // The peer retransmits and the next data frame is acknowledged again
+            peer.onUdpSendFailed(e);
+        }
+    }
+
+    /** Handles a reliable frame received from the peer, the entry's array is reused after this returns */
+    public void onFrame(ByteBuffer entry) throws IOException {
+        if (entry.remaining() < DATA_HEADER_SIZE) throw new IOException("Truncated reliable UDP frame");
+
+        entry.get(); // Marker
+        byte kind = entry.get();
+        int streamId = entry.get();
+        if (streamId < 0 || streamId >= streams.length) throw new IOException("Unknown reliable UDP stream: " + streamId);
+
+        switch (kind) {
+            case DATA -> onData(streams[streamId], entry);
+            case ACK -> {
+                if (entry.remaining() < ACK_SIZE - 3) throw new IOException("Truncated reliable UDP ack");
+                onAck(streams[streamId], seq(entry.getShort()), entry.getInt());
+            }
+            default -> throw new IOException("Unknown reliable UDP frame: " + kind);
+        }
+    }
+
+    private void onData(StreamState state, ByteBuffer entry) throws IOException {
+        int sequence = seq(entry.getShort());
+        receive(state, sequence, P2PMessage.decode(entry, NetworkProtocol.RELIABLE_UDP), false);
+    }
+
+    /** Handles a message the peer gave up sending over UDP and resent over TCP */
+    public void onFallback(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < FALLBACK_HEADER_SIZE) throw new IOException("Truncated reliable UDP fallback");
+
+        int streamId = payload.get();
+        if (streamId < 0 || streamId >= streams.length) throw new IOException("Unknown reliable UDP stream: " + streamId);
+
+        int sequence = seq(payload.getShort());
+        receive(streams[streamId], sequence, P2PMessage.decode(payload, NetworkProtocol.RELIABLE_UDP), true);
+    }
+
+    private void receive(StreamState state, int sequence, P2PMessage message, boolean overTcp) {
+        List<P2PMessage> deliverable = new ArrayList<>();
+        synchronized (this) {
+            state.ackDue = true;
+
+            // Duplicates are dropped here, including resends over TCP of messages whose acknowledgement was lost.
+            // TCP keeps those in order and they fill the gaps before later frames, so they are not limited to the window
+            int offset = seqDiff(sequence, state.nextExpected);
+            if (offset < 0 || (offset >= WINDOW && !overTcp)) return;
+            state.received.putIfAbsent(sequence, message);
+
+            P2PMessage next;
+            while ((next = state.received.remove(state.nextExpected)) != null) {
+                deliverable.add(next);
+                state.nextExpected = seq(state.nextExpected + 1);
+            }
+        }
+
+        // Handled outside the lock, handlers may send messages to this peer
+        for (P2PMessage ready : deliverable) manager.handleMessage(peer, ready);
+    }
+
+    private synchronized void onAck(StreamState state, int nextExpected, int received) {
+        long now = System.currentTimeMillis();
+
+        Iterator<Map.Entry<Integer, Pending>> it = state.pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Pending> entry = it.next();
+            int offset = seqDiff(entry.getKey(), nextExpected);
+
+            if (offset < 0 || (offset > 0 && offset <= SACK_BITS && (received & (1 << (offset - 1))) != 0)) {
+                // Retransmitted messages give no reliable round trip sample
+                if (entry.getValue().attempts == 1) updateRtt(now - entry.getValue().sentAt);
+                it.remove();
+            }
+        }
+
+        while (state.pending.size() < WINDOW && !state.waiting.isEmpty()) {
+            int sequence = state.nextSeq;
+            transmit(state, sequence, newPending(state, state.waiting.poll()));
+        }
+    }
+
+    private void updateRtt(long sampleMs) {
+        smoothedRttMs = (smoothedRttMs == 0) ? sampleMs : (7 * smoothedRttMs + sampleMs) / 8;
+    }
+
+    private long getRetransmitTimeoutMs() {
+        long rtt = (smoothedRttMs == 0) ? INITIAL_RTT_MS : smoothedRttMs;
+        return Math.clamp(2 * rtt + TICK_MS, MIN_RTO_MS, MAX_RTO_MS);
+    }
+
+    private void tick() {
+        List<P2PMessage> fallback = null;
+
+        try {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                long timeoutMs = getRetransmitTimeoutMs();
+
+                for (StreamState state : streams) {
+                    if (state.ackDue) sendAck(state);
+
+                    for (Map.Entry<Integer, Pending> entry : state.pending.entrySet()) {
+                        Pending pending = entry.getValue();
+                        if (now - pending.sentAt < Math.min(timeoutMs << (pending.attempts - 1), MAX_RTO_MS)) continue;
+
+                        if (pending.attempts >= MAX_ATTEMPTS) {
+                            if (fallback == null) fallback = new ArrayList<>();
+                            fallback.addAll(giveUp(state));
+                            break;
+                        }
+
+                        transmit(state, entry.getKey(), pending);
+                        retransmits++;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // An exception would cancel the periodic task
+            manager.logger.error().message("Reliable UDP tick failed: {}", e.getMessage(), e).build();
+        }
+
+        if (fallback != null) peer.onReliableUdpFailed(fallback);
+    }
+
+    /** Takes every unacknowledged message of the stream in order, wrapped with its sequence to be resent over TCP */
+    private List<P2PMessage> giveUp(StreamState state) {
+        List<P2PMessage> messages = new ArrayList<>(state.pending.size() + state.waiting.size());
+        for (Map.Entry<Integer, Pending> entry : state.pending.entrySet()) {
+            messages.add(fallbackFor(state, entry.getKey(), entry.getValue().message));
+        }
+
+        // Waiting messages were never sent, they take the next sequences so the receiver delivers them after the others
+        for (P2PMessage message : state.waiting) {
+            messages.add(fallbackFor(state, state.nextSeq, message));
+            state.nextSeq = seq(state.nextSeq + 1);
+        }
+
+        state.pending.clear();
+        state.waiting.clear();
+        fallbackMessages += messages.size();
+        return messages;
+    }
+
+    private P2PMessage fallbackFor(StreamState state, int sequence, P2PMessage message) {
+        ByteBuffer body = peer.encodedBodyFor(message);
+        byte[] payload = new byte[FALLBACK_HEADER_SIZE + body.remaining()];
+        ByteBuffer.wrap(payload).put(state.id).putShort((short) sequence).put(body);
+
+        return new P2PMessage(P2PMessageType.RELIABLE_FALLBACK, payload, NetworkProtocol.TCP);
+    }
+
+    public synchronized void close() {
+        tickTask.cancel(false);
+        for (StreamState state : streams) {
+            state.pending.clear();
+            state.waiting.clear();
+            state.received.clear();
+        }
+    }
+
+    public synchronized long getSentMessages() { return sentMessages; }
+    public synchronized long getRetransmits() { return retransmits; }
+    public synchronized long getFallbackMessages() { return fallbackMessages; }
+}
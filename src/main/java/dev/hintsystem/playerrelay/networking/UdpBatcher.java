@@ -0,0 +1,114 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.networking.transport.Transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs the UDP messages sent to one peer within a short window into as few datagrams as fit the MTU.
+ * <p>
+ * A datagram holding a single message keeps the plain layout {@code [udpId][message]}. A batch is
+ * {@code [udpId][BATCH_MARKER]} followed by {@code [short length][message]} for every message.
+ */
+public class UdpBatcher {
+    /** Never a valid message type id, marks a datagram carrying several length-prefixed messages */
+    public static final byte BATCH_MARKER = (byte) 0xFF;
+
+    public static final int UDP_ID_SIZE = 2;
+    public static final int BATCH_HEADER_SIZE = UDP_ID_SIZE + 1;
+    public static final int ENTRY_HEADER_SIZE = 2;
+
+    private final PeerConnection peer;
+    private final P2PNetworkManager manager;
+    private final byte[] buffer = new byte[P2PNetworkManager.MAX_UDP_PACKET_SIZE];
+
+    private int length = BATCH_HEADER_SIZE;
+    private int messageCount = 0;
+    private ScheduledFuture<?> flushTask;
+
+    private long sentDatagrams = 0;
+    private long batchedMessages = 0;
+
+    public UdpBatcher(PeerConnection peer, P2PNetworkManager manager) {
+        this.peer = peer;
+        this.manager = manager;
+    }
+
+    /** Returns the largest message that fits into one datagram alone */
+    public static int maxMessageSize(int payloadBudget) { return payloadBudget - UDP_ID_SIZE; }
+
+    /**
+     * Adds an encoded message to the batch, sending the batch first if the message would not fit.
+     * The batch is sent once the flush window passes, or right away when batching is disabled.
+     */
+    public synchronized void add(ByteBuffer body, short udpId, InetSocketAddress target, int payloadBudget, int flushWindowMs) throws IOException {
+        int messageSize = body.remaining();
+        if (messageSize > maxMessageSize(payloadBudget)) {
+            throw new IOException(String.format("UDP message too large (%dB), exceeds MTU limit", messageSize));
+        }
+
+        if (messageCount > 0 && length + ENTRY_HEADER_SIZE + messageSize > payloadBudget) flush(udpId, target);
+
+        buffer[length] = (byte) (messageSize >> 8);
+        buffer[length + 1] = (byte) messageSize;
+        body.get(buffer, length + ENTRY_HEADER_SIZE, messageSize);
+        length += ENTRY_HEADER_SIZE + messageSize;
+        messageCount++;
+
+        if (flushWindowMs <= 0) {
+            flush(udpId, target);
+        } else if (flushTask == null) {
+            flushTask = manager.getScheduler().schedule(() -> flushQueued(udpId, target), flushWindowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void flushQueued(short udpId, InetSocketAddress target) {
+        flushTask = null;
+        try {
+            flush(udpId, target);
+        } catch (IOException e) {
+            peer.onUdpSendFailed(e);
+        }
+    }
+
+    private void flush(short udpId, InetSocketAddress target) throws IOException {
+        if (messageCount == 0) return;
+
+        int start;
+        if (messageCount == 1) {
+            // Send the lone message without batch framing, the udp id goes right in front of it
+            start = BATCH_HEADER_SIZE + ENTRY_HEADER_SIZE - UDP_ID_SIZE;
+        } else {
+            start = 0;
+            buffer[UDP_ID_SIZE] = BATCH_MARKER;
+        }
+        buffer[start] = (byte) (udpId >> 8);
+        buffer[start + 1] = (byte) udpId;
+
+        int datagramLength = length - start;
+        batchedMessages += messageCount;
+        sentDatagrams++;
+
+        length = BATCH_HEADER_SIZE;
+        messageCount = 0;
+
+        Transport transport = manager.getTransport();
+        if (transport == null) throw new IOException("Transport closed");
+        transport.sendDatagram(buffer, start, datagramLength, target);
+    }
+
+    /** Drops messages that have not been sent yet */
+    public synchronized void clear() {
+        if (flushTask != null) flushTask.cancel(false);
+        flushTask = null;
+        length = BATCH_HEADER_SIZE;
+        messageCount = 0;
+    }
+
+    public synchronized long getSentDatagrams() { return sentDatagrams; }
+    public synchronized long getBatchedMessages() { return batchedMessages; }
+}
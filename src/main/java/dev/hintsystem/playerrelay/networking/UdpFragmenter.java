@@ -0,0 +1,160 @@
+package dev.hintsystem.playerrelay.networking;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits UDP entries that do not fit into one datagram into numbered fragments, and reassembles them on the receiving side.
+ * <p>
+ * Every fragment is a UDP batch entry {@code [FRAGMENT_MARKER][short fragmentId][index][count][data]}. Receivers hold
+ * at most {@value #MAX_REASSEMBLIES} incomplete entries for {@value #REASSEMBLY_TIMEOUT_MS} ms, an entry missing a
+ * fragment after that is dropped like a lost datagram.
+ */
+public class UdpFragmenter {
+    /** Never a valid message type id, marks a UDP entry carrying a fragment */
+    public static final byte FRAGMENT_MARKER = (byte) 0xFD;
+    public static final int FRAGMENT_HEADER_SIZE = 5;
+    public static final int MAX_FRAGMENTS = 64;
+
+    private static final int MAX_REASSEMBLIES = 16;
+    private static final long REASSEMBLY_TIMEOUT_MS = 2000;
+
+    private static class Reassembly {
+        final byte[][] fragments;
+        final long startedAt;
+        int receivedFragments = 0;
+        int length = 0;
+
+        Reassembly(int count, long startedAt) {
+            this.fragments = new byte[count][];
+            this.startedAt = startedAt;
+        }
+    }
+
+    private int nextFragmentId = 0;
+    private final LinkedHashMap<Integer, Reassembly> reassemblies = new LinkedHashMap<>();
+
+    private long fragmentedEntries = 0;
+    private long sentFragments = 0;
+    private long reassembledEntries = 0;
+    private long droppedEntries = 0;
+    private long lostFragments = 0;
+
+    /** Returns the largest entry that can be sent in fragments */
+    public static int maxEntrySize(int payloadBudget) { return MAX_FRAGMENTS * fragmentDataSize(payloadBudget); }
+
+    private static int fragmentDataSize(int payloadBudget) { return UdpBatcher.maxMessageSize(payloadBudget) - FRAGMENT_HEADER_SIZE; }
+
+    /** Splits an entry into fragments that each fit into one datagram */
+    public List<ByteBuffer> split(ByteBuffer entry, int payloadBudget) throws IOException {
+        int dataSize = fragmentDataSize(payloadBudget);
+        int count = (entry.remaining() + dataSize - 1) / dataSize;
+        if (count > MAX_FRAGMENTS) {
+            throw new IOException(String.format("UDP message too large (%dB), exceeds %d fragments", entry.remaining(), MAX_FRAGMENTS));
+        }
+
+        int fragmentId;
+        synchronized (this) {
+            fragmentId = nextFragmentId;
+            nextFragmentId = (nextFragmentId + 1) & 0xFFFF;
+            fragmentedEntries++;
+            sentFragments += count;
+        }
+
+        List<ByteBuffer> fragments = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            int length = Math.min(dataSize, entry.remaining());
+
+            fragments.add(ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + length)
+                .put(FRAGMENT_MARKER)
+                .putShort((short) fragmentId)
+                .put((byte) index)
+                .put((byte) count)
+                .put(entry.slice(entry.position(), length))
+                .flip());
+
+            entry.position(entry.position() + length);
+        }
+        return fragments;
+    }
+
+    /**
+     * Adds a received fragment, the entry's array is reused after this returns.
+     * @return the reassembled entry once all of its fragments arrived, otherwise null
+     */
+    @Nullable
+    public synchronized ByteBuffer onFragment(ByteBuffer entry) throws IOException {
+        if (entry.remaining() <= FRAGMENT_HEADER_SIZE) throw new IOException("Truncated UDP fragment");
+
+        entry.get(); // Marker
+        int fragmentId = entry.getShort() & 0xFFFF;
+        int index = entry.get() & 0xFF;
+        int count = entry.get() & 0xFF;
+        if (count < 2 || count > MAX_FRAGMENTS || index >= count) {
+            throw new IOException(String.format("Invalid UDP fragment %d/%d", index, count));
+        }
+
+        long now = System.currentTimeMillis();
+        expireReassemblies(now);
+
+        Reassembly reassembly = reassemblies.get(fragmentId);
+        if (reassembly == null) {
+            // Make room by dropping the oldest incomplete entry
+            if (reassemblies.size() >= MAX_REASSEMBLIES) onDropped(reassemblies.pollFirstEntry().getValue());
+
+            reassembly = new Reassembly(count, now);
+            reassemblies.put(fragmentId, reassembly);
+        } else if (reassembly.fragments.length != count) {
+            throw new IOException("UDP fragment count changed for fragment id " + fragmentId);
+        }
+
+        if (reassembly.fragments[index] != null) return null;
+
+        byte[] data = new byte[entry.remaining()];
+        entry.get(data);
+        reassembly.fragments[index] = data;
+        reassembly.receivedFragments++;
+        reassembly.length += data.length;
+
+        if (reassembly.receivedFragments < count) return null;
+
+        reassemblies.remove(fragmentId);
+        reassembledEntries++;
+
+        ByteBuffer whole = ByteBuffer.allocate(reassembly.length);
+        for (byte[] fragment : reassembly.fragments) whole.put(fragment);
+        return whole.flip();
+    }
+
+    private void expireReassemblies(long now) {
+        // Insertion order is start order, so the oldest entries come first
+        Iterator<Map.Entry<Integer, Reassembly>> it = reassemblies.entrySet().iterator();
+        while (it.hasNext()) {
+            Reassembly reassembly = it.next().getValue();
+            if (now - reassembly.startedAt < REASSEMBLY_TIMEOUT_MS) return;
+
+            it.remove();
+            onDropped(reassembly);
+        }
+    }
+
+    private void onDropped(Reassembly dropped) {
+        droppedEntries++;
+        lostFragments += dropped.fragments.length - dropped.receivedFragments;
+    }
+
+    public synchronized void clear() { reassemblies.clear(); }
+
+    public synchronized long getFragmentedEntries() { return fragmentedEntries; }
+    public synchronized long getSentFragments() { return sentFragments; }
+    public synchronized long getReassembledEntries() { return reassembledEntries; }
+    public synchronized long getDroppedEntries() { return droppedEntries; }
+    public synchronized long getLostFragments() { return lostFragments; }
+}
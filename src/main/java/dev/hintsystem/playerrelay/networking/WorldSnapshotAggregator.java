@@ -0,0 +1,152 @@
+package dev.hintsystem.playerrelay.networking;
+
+import dev.hintsystem.playerrelay.PlayerRelay;
+import dev.hintsystem.playerrelay.networking.message.MessageId;
+import dev.hintsystem.playerrelay.networking.message.P2PMessage;
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+import dev.hintsystem.playerrelay.payload.PlayerIndexPayload;
+import dev.hintsystem.playerrelay.payload.PlayerInfoPayload;
+import dev.hintsystem.playerrelay.payload.WorldSnapshotPayload;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Host side conflation of position updates. Instead of forwarding every player's position updates to every
+ * peer, the host keeps the latest update of each player and once per snapshot interval sends every peer a
+ * single {@link WorldSnapshotPayload} with the players that moved, leaving out the peer's own players and
+ * those the {@link InterestManager} holds back.
+ * <p>
+ * Snapshot entries refer to players by a short index instead of their UUID. A peer is told the index of a
+ * player reliably before the first snapshot containing that player, see {@link PlayerIndexPayload}.
+ */
+public class WorldSnapshotAggregator {
+    private final P2PNetworkManager manager;
+
+    /** Latest encoded position update of every player that moved since the last snapshot */
+    private final ConcurrentMap<UUID, ByteBuffer> pendingUpdates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, Integer> playerIndices = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPlayerIndex = new AtomicInteger(1);
+
+    private final AtomicLong conflatedUpdates = new AtomicLong();
+    private final AtomicLong sentSnapshots = new AtomicLong();
+
+    public WorldSnapshotAggregator(P2PNetworkManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Takes a message the host would otherwise forward.
+     * @return true if the message is a position update that will be sent with the next snapshot instead
+     */
+    public boolean absorb(P2PMessage message) {
+        if (!PlayerRelay.config.hostSnapshots) return false;
+
+        switch (message.getType()) {
+            case PLAYER_INFO -> {
+                // Position keyframes are sent reliably on purpose, receivers need them to decode later deltas
+                if (message.getPreferredProtocol() != NetworkProtocol.UDP) return false;
+
+                UUID playerId = PlayerInfoPayload.peekPositionUpdate(message.getPayloadBuffer());
+                if (playerId == null) return false;
+
+                if (pendingUpdates.put(playerId, message.getPayloadBuffer()) != null) conflatedUpdates.incrementAndGet();
+                return true;
+            }
+            case PLAYER_DISCONNECT -> {
+                // A position sent after the disconnect would bring the player back on the receivers
+                ByteBuffer payload = message.getPayloadBuffer();
+                if (payload.remaining() >= 16) pendingUpdates.remove(new UUID(payload.getLong(0), payload.getLong(8)));
+                return false;
+            }
+            default -> { return false; }
+        }
+    }
+
+    /** Sends the position updates collected since the last call, called once per snapshot interval */
+    public void sendSnapshots() {
+        if (pendingUpdates.isEmpty()) return;
+
+        // Removing one entry at a time never loses an update that arrives meanwhile, it is sent next interval instead
+        List<PendingUpdate> updates = new ArrayList<>(pendingUpdates.size());
+        for (UUID playerId : pendingUpdates.keySet()) {
+            ByteBuffer update = pendingUpdates.remove(playerId);
+            if (update != null) {
+                int playerIndex = playerIndices.computeIfAbsent(playerId, id -> nextPlayerIndex.getAndIncrement());
+                updates.add(new PendingUpdate(playerId, playerIndex, update));
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (PeerConnection peer : manager.getConnectedPeers()) {
+            sendSnapshots(peer, updates, now);
+        }
+    }
+
+    private record PendingUpdate(UUID playerId, int playerIndex, ByteBuffer payload) {}
+
+    private void sendSnapshots(PeerConnection peer, List<PendingUpdate> updates, long now) {
+        Map<Integer, UUID> newIndices = new HashMap<>();
+
+        // Split into messages that each fit a single datagram, without the message type byte
+        int maxSize = UdpBatcher.maxMessageSize(peer.getUdpDatagramBudget()) - 1;
+        ByteBuffer out = ByteBuffer.allocate(maxSize);
+        List<ByteBuffer> snapshots = new ArrayList<>();
+        int count = 0;
+        out.position(WorldSnapshotPayload.COUNT_SIZE);
+
+        for (PendingUpdate update : updates) {
+            if (peer.announcedPlayers.contains(update.playerId())) continue;
+            if (!manager.getInterestManager().shouldSend(peer, update.playerId(), now)) continue;
+
+            // The entry is the player index followed by the payload without its UUID
+            ByteBuffer components = update.payload().duplicate().position(PlayerInfoPayload.UUID_SIZE);
+            int entrySize = MessageId.varIntSize(update.playerIndex()) + components.remaining();
+            if (entrySize > maxSize - WorldSnapshotPayload.COUNT_SIZE) continue;
+
+            if (out.remaining() < entrySize) {
+                snapshots.add(finish(out, count));
+                out = ByteBuffer.allocate(maxSize).position(WorldSnapshotPayload.COUNT_SIZE);
+                count = 0;
+            }
+
+            if (peer.playerIndices.putIfAbsent(update.playerIndex(), update.playerId()) == null) {
+                newIndices.put(update.playerIndex(), update.playerId());
+            }
+
+            MessageId.writeVarInt(out, update.playerIndex());
+            out.put(components);
+            count++;
+        }
+
+        if (count > 0) snapshots.add(finish(out, count));
+
+        // Indices are sent reliably first, a snapshot arriving before them only loses the entries of the new players
+        if (!newIndices.isEmpty()) peer.sendMessage(new PlayerIndexPayload(newIndices).message());
+        for (ByteBuffer snapshot : snapshots) send(peer, snapshot);
+    }
+
+    private static ByteBuffer finish(ByteBuffer out, int count) {
+        return out.putShort(0, (short) count).flip();
+    }
+
+    private void send(PeerConnection peer, ByteBuffer snapshot) {
+        byte[] payload = Arrays.copyOf(snapshot.array(), snapshot.limit());
+
+        peer.sendMessage(new P2PMessage(P2PMessageType.WORLD_SNAPSHOT, payload, NetworkProtocol.UDP));
+        sentSnapshots.incrementAndGet();
+    }
+
+    public void clear() {
+        pendingUpdates.clear();
+        playerIndices.clear();
+        nextPlayerIndex.set(1);
+    }
+
+    public long getConflatedUpdates() { return conflatedUpdates.get(); }
+    public long getSentSnapshots() { return sentSnapshots.get(); }
+}
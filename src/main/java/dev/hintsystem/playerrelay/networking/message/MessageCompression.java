@@ -0,0 +1,98 @@
+package dev.hintsystem.playerrelay.networking.message;
+
+import dev.hintsystem.playerrelay.networking.transport.FrameCodec;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of encoded messages, used for peers that advertise
+ * {@link dev.hintsystem.playerrelay.payload.RelayVersionPayload#CAPABILITY_COMPRESSION}.
+ * <p>
+ * A compressed message is {@code [COMPRESSED][VarInt length][deflate stream]} wrapping the complete original message.
+ * Both sides use the same preset dictionary, so even short messages compress well. Item stacks are encoded by
+ * registry id, the dictionary holds the strings that still end up on the wire: text component keys of custom
+ * names and lore, formatting names and packet identifiers.
+ */
+public final class MessageCompression {
+    private static final byte[] DICTIONARY = String.join("",
+        "minecraft:", "ping-wheel:", "playerrelay:",
+        "black", "dark_blue", "dark_green", "dark_aqua", "dark_red", "dark_purple", "gold", "gray", "dark_gray",
+        "blue", "green", "aqua", "red", "light_purple", "yellow", "white",
+        "translate", "fallback", "with", "insertion", "font", "hover_event", "click_event", "shadow_color",
+        "obfuscated", "strikethrough", "underlined", "bold", "italic", "color", "extra", "type", "text"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private MessageCompression() {}
+
+    /**
+     * Compresses an encoded message.
+     * @return the compressed message, or null if compressing does not make it smaller
+     */
+    @Nullable
+    public static byte[] compress(ByteBuffer body) {
+        int length = body.remaining();
+        int headerSize = 1 + MessageId.varIntSize(length);
+        if (headerSize >= length) return null;
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(body.duplicate());
+        deflater.finish();
+
+        ByteBuffer out = ByteBuffer.allocate(length - 1);
+        out.put(P2PMessageType.COMPRESSED.getId());
+        MessageId.writeVarInt(out, length);
+        deflater.deflate(out);
+
+        if (!deflater.finished()) return null;
+        return (out.position() == out.capacity()) ? out.array() : Arrays.copyOf(out.array(), out.position());
+    }
+
+    /** Decompresses the message following the {@link P2PMessageType#COMPRESSED} type id at the buffer's position */
+    public static ByteBuffer decompress(ByteBuffer in) throws IOException {
+        int length;
+        try {
+            length = MessageId.readVarInt(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated compressed message");
+        }
+        if (length < 1 || length > FrameCodec.MAX_FRAME_SIZE) throw new IOException("Invalid compressed message length: " + length);
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(in);
+
+        byte[] out = new byte[length];
+        int written = 0;
+
+        try {
+            while (written < length) {
+                int inflated = inflater.inflate(out, written, length - written);
+                written += inflated;
+                if (inflated > 0) continue;
+
+                // Nothing more to inflate unless the stream asks for the preset dictionary
+                if (!inflater.needsDictionary()) break;
+                inflater.setDictionary(DICTIONARY);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed message: " + e.getMessage(), e);
+        }
+
+        if (written != length) throw new IOException("Compressed message length mismatch");
+        return ByteBuffer.wrap(out);
+    }
+}
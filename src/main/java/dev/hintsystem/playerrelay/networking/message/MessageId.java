@@ -0,0 +1,67 @@
+package dev.hintsystem.playerrelay.networking.message;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Identifies a forwardable message across the relay network as the node that created it and a
+ * per-node sequence number. Both are written as VarInts, so an id usually takes 5-7 bytes on the
+ * wire instead of the 16 bytes of a random UUID, and creating one needs no {@code SecureRandom}.
+ * <p>
+ * The origin is chosen randomly once per session rather than reusing UDP ids, since those are only
+ * unique per host connection and are not known yet when a client sends its first messages.
+ */
+public record MessageId(int origin, int sequence) {
+    /** Origins are limited to 28 bits so they encode in at most 4 VarInt bytes */
+    private static final int ORIGIN_BITS = 28;
+
+    public static final int LOCAL_ORIGIN = ThreadLocalRandom.current().nextInt(1, 1 << ORIGIN_BITS);
+    private static final AtomicInteger nextSequence = new AtomicInteger(1);
+
+    /** Creates the next id for a message originating from this client */
+    public static MessageId next() {
+        return new MessageId(LOCAL_ORIGIN, nextSequence.getAndIncrement());
+    }
+
+    public int getEncodedSize() { return varIntSize(origin) + varIntSize(sequence); }
+
+    public void encode(ByteBuffer out) {
+        writeVarInt(out, origin);
+        writeVarInt(out, sequence);
+    }
+
+    public static MessageId decode(ByteBuffer in) {
+        return new MessageId(readVarInt(in), readVarInt(in));
+    }
+
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void writeVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("VarInt too long");
+    }
+
+    @Override
+    public String toString() { return origin + ":" + sequence; }
+}
@@ -1,6 +1,7 @@
 package dev.hintsystem.playerrelay.networking.message;
 
 import dev.hintsystem.playerrelay.networking.NetworkProtocol;
+import dev.hintsystem.playerrelay.networking.transport.FrameCodec;
 import dev.hintsystem.playerrelay.payload.Utility;
 
 import net.minecraft.network.PacketByteBuf;
@@ -10,43 +11,68 @@ import net.minecraft.util.Identifier;
 
 import io.netty.buffer.Unpooled;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.UUID;
 
 public class P2PMessage {
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
     private final NetworkProtocol preferredProtocol;
     private final P2PMessageType type;
-    private UUID messageId;
+    private final MessageId messageId;
     private Identifier packetId;
-    private final byte[] payload;
+    private byte[] packetIdBytes;
+
+    // The payload may be a region of a larger array, e.g. the received frame of a decoded message
+    private final byte[] payloadData;
+    private final int payloadOffset;
+    private final int payloadLength;
+
+    /** TCP frame of this message, encoded on first use and shared by every peer it is sent to */
+    private volatile ByteBuffer frame;
+    /** Frame sent to peers that accept compressed messages, the plain frame if compression does not pay off */
+    private volatile ByteBuffer compressedFrame;
 
     public P2PMessage(P2PMessageType type, byte[] payload, NetworkProtocol preferredProtocol) {
+        this(type, type.shouldForward() ? MessageId.next() : null,
+            payload, 0, (payload != null) ? payload.length : 0, preferredProtocol);
+    }
+
+    private P2PMessage(P2PMessageType type, MessageId messageId, byte[] payloadData, int payloadOffset, int payloadLength, NetworkProtocol preferredProtocol) {
         this.preferredProtocol = preferredProtocol;
         this.type = type;
-        this.messageId = UUID.randomUUID();
-        this.payload = payload;
+        this.messageId = messageId;
+        this.payloadData = (payloadData != null) ? payloadData : EMPTY_PAYLOAD;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
     }
 
     public P2PMessage(P2PMessageType type, PacketByteBuf payload) {
-        this(type, bytesFromPacketByteBuf(payload), NetworkProtocol.TCP);
+        this(type, payload, NetworkProtocol.TCP);
+    }
+
+    public P2PMessage(P2PMessageType type, PacketByteBuf payload, NetworkProtocol preferredProtocol) {
+        this(type, bytesFromPacketByteBuf(payload), preferredProtocol);
     }
 
     public P2PMessage(CustomPayload packet) {
-        this.preferredProtocol = NetworkProtocol.TCP;
-        this.type = P2PMessageType.PACKET;
-        this.messageId = UUID.randomUUID();
+        this(P2PMessageType.PACKET, serializePacket(packet), NetworkProtocol.RELIABLE_UDP);
         this.packetId = packet.getId().id();
+    }
 
+    private static byte[] serializePacket(CustomPayload packet) {
         PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
 
         try {
             packet.getClass().getMethod("write", PacketByteBuf.class).invoke(packet, buf);
         } catch (Exception e) {
-            throw new RuntimeException("Failed to serialize packet " + packetId, e);
+            buf.release();
+            throw new RuntimeException("Failed to serialize packet " + packet.getId().id(), e);
         }
 
-        this.payload = bytesFromPacketByteBuf(buf);
+        return bytesFromPacketByteBuf(buf);
     }
 
     private static byte[] bytesFromPacketByteBuf(PacketByteBuf buf) {
@@ -57,69 +83,135 @@ public class P2PMessage {
         return bytes;
     }
 
-    public void writeTo(DataOutputStream out) throws IOException {
-        out.writeByte(type.getId());
+    /** Returns a message with the same id and header but another payload, such as a forwarded message with parts left out */
+    public P2PMessage withPayload(byte[] payload) {
+        P2PMessage variant = new P2PMessage(type, messageId, payload, 0, payload.length, preferredProtocol);
+        variant.packetId = packetId;
+        return variant;
+    }
 
-        if (type.shouldForward()) {
-            out.writeLong(messageId.getMostSignificantBits());
-            out.writeLong(messageId.getLeastSignificantBits());
-        }
+    /** Returns the number of bytes {@link #encode(ByteBuffer)} will write */
+    public int getEncodedSize() {
+        int size = 1;
+        if (type.shouldForward()) size += messageId.getEncodedSize();
+        if (type == P2PMessageType.PACKET) size += 2 + getPacketIdBytes().length;
+        return size + payloadLength;
+    }
+
+    /**
+     * Writes the message header and payload to the buffer. The payload is not length-prefixed,
+     * it extends to the end of the enclosing TCP frame or UDP datagram.
+     */
+    public void encode(ByteBuffer out) {
+        out.put(type.getId());
+
+        if (type.shouldForward()) messageId.encode(out);
 
-        // VarInt (or short) for id length + UTF-8 id (only if PACKET)
+        // Short for id length + UTF-8 id (only if PACKET)
         if (type == P2PMessageType.PACKET) {
-            byte[] idBytes = packetId.toString().getBytes(StandardCharsets.UTF_8);
-            out.writeShort(idBytes.length);
-            out.write(idBytes);
+            byte[] idBytes = getPacketIdBytes();
+            out.putShort((short) idBytes.length);
+            out.put(idBytes);
         }
 
-        if (payload != null) {
-            out.writeInt(payload.length);
-            out.write(payload);
-        } else {
-            out.writeInt(0);
-        }
+        out.put(payloadData, payloadOffset, payloadLength);
     }
 
-    public static P2PMessage readFrom(DataInputStream in, NetworkProtocol receivedVia) throws IOException {
-        P2PMessageType type = P2PMessageType.fromId(in.readByte());
+    /**
+     * Decodes a message occupying all remaining bytes of the buffer.
+     * <p>
+     * Only the header is parsed. The received bytes are copied once into the message's TCP frame,
+     * which the payload points into, so forwarding the message sends the original bytes without
+     * re-encoding them and the payload is only interpreted if a handler asks for it.
+     */
+    public static P2PMessage decode(ByteBuffer in, NetworkProtocol receivedVia) throws IOException {
+        if (in.hasRemaining() && in.get(in.position()) == P2PMessageType.COMPRESSED.getId()) {
+            in.get();
+            ByteBuffer decompressed = MessageCompression.decompress(in);
+
+            if (decompressed.get(0) == P2PMessageType.COMPRESSED.getId()) throw new IOException("Nested compressed message");
+            return decode(decompressed, receivedVia);
+        }
 
-        UUID messageId = null;
-        Identifier id = null;
-        byte[] payload = null;
+        int bodyLength = in.remaining();
+        byte[] frameBytes = new byte[FrameCodec.LENGTH_FIELD_SIZE + bodyLength];
+        ByteBuffer frame = ByteBuffer.wrap(frameBytes).putInt(bodyLength).put(in).flip();
 
-        if (type.shouldForward()) {
-            messageId = new UUID(in.readLong(), in.readLong());
+        try {
+            ByteBuffer header = frame.duplicate().position(FrameCodec.LENGTH_FIELD_SIZE);
+            P2PMessageType type = P2PMessageType.fromId(header.get());
+
+            MessageId messageId = null;
+            Identifier id = null;
+
+            if (type.shouldForward()) messageId = MessageId.decode(header);
+
+            if (type == P2PMessageType.PACKET) {
+                byte[] idBytes = new byte[header.getShort()];
+                header.get(idBytes);
+                id = Identifier.of(new String(idBytes, StandardCharsets.UTF_8));
+            }
+
+            P2PMessage msg = new P2PMessage(type, messageId, frameBytes, header.position(), header.remaining(), receivedVia);
+            msg.packetId = id;
+            msg.frame = frame.asReadOnlyBuffer();
+            return msg;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed message: " + e.getMessage(), e);
         }
+    }
 
-        if (type == P2PMessageType.PACKET) {
-            int idLen = in.readShort();
-            byte[] idBytes = in.readNBytes(idLen);
-            id = Identifier.of(new String(idBytes, StandardCharsets.UTF_8));
+    /**
+     * Returns a read-only view of this message's TCP frame. The message is encoded only once,
+     * so broadcasting or forwarding it to N peers does not encode it N times.
+     */
+    public ByteBuffer getFrame() {
+        ByteBuffer cached = frame;
+        if (cached == null) {
+            // Concurrent first calls may both encode, which is harmless as the result is identical
+            cached = FrameCodec.encode(this).asReadOnlyBuffer();
+            frame = cached;
         }
+        return cached.duplicate();
+    }
 
-        int payloadLen = in.readInt();
-        if (payloadLen > 0) {
-            payload = in.readNBytes(payloadLen);
-        }
+    /** Returns a read-only view of the encoded message without the TCP frame header, as carried by a UDP datagram */
+    public ByteBuffer getEncodedBody() {
+        if (type == P2PMessageType.RELAY_VERSION) throw new IllegalStateException("Version handshake is only sent over TCP");
+
+        ByteBuffer view = getFrame();
+        return view.position(FrameCodec.LENGTH_FIELD_SIZE).slice();
+    }
 
-        P2PMessage msg = new P2PMessage(type, payload, receivedVia);
-        msg.packetId = id;
-        msg.messageId = messageId;
-        return msg;
+    /**
+     * Returns the frame compressed with {@link MessageCompression} if the message is at least the threshold size and
+     * compressing makes it smaller, otherwise the plain frame. Like the plain frame, it is only compressed once.
+     */
+    public ByteBuffer getCompressedFrame(int threshold) {
+        if (type == P2PMessageType.RELAY_VERSION) return getFrame();
+
+        ByteBuffer cached = compressedFrame;
+        if (cached == null) {
+            ByteBuffer plain = getFrame();
+            byte[] compressed = (plain.remaining() - FrameCodec.LENGTH_FIELD_SIZE >= threshold)
+                ? MessageCompression.compress(plain.position(FrameCodec.LENGTH_FIELD_SIZE).slice()) : null;
+
+            cached = (compressed != null) ? FrameCodec.frame(compressed).asReadOnlyBuffer() : getFrame();
+            compressedFrame = cached;
+        }
+        return cached.duplicate();
     }
 
-    public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(baos);
-        writeTo(out);
-        out.close();
-        return baos.toByteArray();
+    /** Returns the body of {@link #getCompressedFrame(int)}, as carried by a UDP datagram */
+    public ByteBuffer getCompressedBody(int threshold) {
+        if (type == P2PMessageType.RELAY_VERSION) throw new IllegalStateException("Version handshake is only sent over TCP");
+
+        return getCompressedFrame(threshold).position(FrameCodec.LENGTH_FIELD_SIZE).slice();
     }
 
-    public static P2PMessage fromBytes(byte[] data, NetworkProtocol preferredProtocol) throws IOException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        DataInputStream in = new DataInputStream(bais);
-        return readFrom(in, preferredProtocol);
+    private byte[] getPacketIdBytes() {
+        if (packetIdBytes == null) packetIdBytes = packetId.toString().getBytes(StandardCharsets.UTF_8);
+        return packetIdBytes;
     }
 
     public boolean isPacket() {
@@ -128,10 +220,13 @@ public class P2PMessage {
 
     public NetworkProtocol getPreferredProtocol() { return preferredProtocol; }
     public P2PMessageType getType() { return type; }
-    public UUID getId() { return messageId; }
+    public MessageId getId() { return messageId; }
     public Identifier getPacketId() { return packetId; }
-    public byte[] getPayload() { return payload; }
-    public RegistryByteBuf getPayloadByteBuf() { return new RegistryByteBuf(Unpooled.wrappedBuffer(payload), Utility.getRegistryManager()); }
+    public int getPayloadLength() { return payloadLength; }
+    public ByteBuffer getPayloadBuffer() { return ByteBuffer.wrap(payloadData, payloadOffset, payloadLength).slice().asReadOnlyBuffer(); }
+    public RegistryByteBuf getPayloadByteBuf() {
+        return new RegistryByteBuf(Unpooled.wrappedBuffer(payloadData, payloadOffset, payloadLength), Utility.getRegistryManager());
+    }
 
     // Reconstruct packet instance from this message
     public CustomPayload toPacket(Class<? extends CustomPayload> classType) {
@@ -140,7 +235,7 @@ public class P2PMessage {
         }
 
         try {
-            PacketByteBuf buf = new PacketByteBuf(Unpooled.wrappedBuffer(payload));
+            PacketByteBuf buf = new PacketByteBuf(Unpooled.wrappedBuffer(payloadData, payloadOffset, payloadLength));
             return classType.getConstructor(PacketByteBuf.class).newInstance(buf);
         } catch (Exception e) {
             throw new RuntimeException("Failed to reconstruct packet " + packetId, e);
@@ -8,6 +8,7 @@ import dev.hintsystem.playerrelay.mods.SupportPingWheel;
 import dev.hintsystem.playerrelay.networking.*;
 import dev.hintsystem.playerrelay.payload.*;
 import dev.hintsystem.playerrelay.payload.player.PlayerBasicData;
+import dev.hintsystem.playerrelay.payload.player.PlayerPositionData;
 
 import net.minecraft.util.Identifier;
 import net.minecraft.client.network.ClientPlayerEntity;
@@ -21,6 +22,8 @@ import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class P2PMessageHandler {
     public final PlayerRelayLogger logger;
@@ -33,17 +36,31 @@ public class P2PMessageHandler {
     private final ConcurrentMap<UUID, CompletableFuture<PlayerInventoryPayload>> pendingInventoryRequests = new ConcurrentHashMap<>();
     private final ConcurrentMap<UUID, CompletableFuture<PlayerInventoryPayload>> pendingEnderChestRequests = new ConcurrentHashMap<>();
 
+    /** Item stacks are fetched at most once at a time, messages waiting for the same stack share the fetch */
+    public static final long ITEM_STACK_FETCH_TIMEOUT_MS = 2000;
+    private final ConcurrentMap<Long, CompletableFuture<Void>> pendingStackFetches = new ConcurrentHashMap<>();
+
+    // Messages are decoded on network threads but anything touching game or player list state is applied on the client thread
+    private final InboundEventQueue eventQueue;
+    private final InventorySubscriptions inventorySubscriptions;
+
     public P2PMessageHandler(P2PNetworkManager networkManager) {
         this.logger = networkManager.logger.withLocation(LogLocation.MESSAGE_HANDLER);
         this.networkManager = networkManager;
+        this.eventQueue = new InboundEventQueue(logger);
+        this.inventorySubscriptions = new InventorySubscriptions(networkManager);
 
         addPacketHandler(new SupportPingWheel());
     }
 
     public void addPlayerInfoHandler(PlayerInfoHandler handler) { playerInfoHandlers.add(handler); }
     public void addPacketHandler(PacketHandler handler) { packetHandlers.add(handler); }
+    public InboundEventQueue getEventQueue() { return eventQueue; }
+    public InventorySubscriptions getInventorySubscriptions() { return inventorySubscriptions; }
 
     public void handleMessage(P2PMessage message, PeerConnection sender) {
+        ItemStackCache.beginDecode();
+
         try {
             switch (message.getType()) {
                 case RELAY_VERSION:
@@ -58,6 +75,10 @@ public class P2PMessageHandler {
                     logger.info().message("UDP handshake received, id: {}, port: {}", handshake.getUdpId(), handshake.getUdpPort()).build();
                     break;
 
+                case RELIABLE_FALLBACK:
+                    sender.getReliableChannel().onFallback(message.getPayloadBuffer());
+                    break;
+
                 case UDP_PING:
                     UdpPingPayload ping = new UdpPingPayload(message.getPayloadByteBuf());
                     sender.onUdpPingReceived(ping);
@@ -68,54 +89,82 @@ public class P2PMessageHandler {
 
                 case PLAYER_INFO:
                     PlayerInfoPayload infoPayload = new PlayerInfoPayload(message.getPayloadByteBuf());
-                    if (infoPayload.playerId.equals(getClientPlayerUuid())) { break; }
+                    infoPayload.resolvePosition();
+
+                    sender.announcedPlayers.add(infoPayload.playerId);
+                    sender.recordUpdateSequence(infoPayload);
 
-                    handlePlayerInfo(infoPayload, sender);
+                    whenStacksFetched(message, sender, missing -> {
+                        infoPayload.replaceStacks(missing::resolve);
+                        eventQueue.postPlayerInfo(infoPayload, info -> handlePlayerInfo(info, sender));
+                    });
                     break;
 
-                case PLAYER_INVENTORY:
-                    PlayerInventoryPayload inventory = new PlayerInventoryPayload(message.getPayloadByteBuf());
+                case WORLD_SNAPSHOT:
+                    WorldSnapshotPayload snapshot = new WorldSnapshotPayload(message.getPayloadByteBuf(), sender.playerIndices);
 
-                    if (inventory.isRequest()) {
-                        ClientPlayerEntity player = MinecraftClient.getInstance().player;
+                    for (WorldSnapshotPayload.Entry entry : snapshot.entries) {
+                        PlayerInfoPayload player = entry.player();
 
-                        if (player != null && player.getUuid().equals(inventory.playerId)) {
-                            sender.sendMessage(PlayerInventoryPayload.respond(player, inventory.isEnderChest()).message());
-                        }
-                    } else {
-                        ConcurrentMap<UUID, CompletableFuture<PlayerInventoryPayload>> pendingRequests = inventory.isEnderChest()
-                            ? pendingEnderChestRequests : pendingInventoryRequests;
+                        // Deltas resolve against keyframes stored on the lane of the player's own updates
+                        networkManager.dispatchForPlayer(player.playerId, () -> {
+                            player.resolvePosition();
+                            sender.announcedPlayers.add(player.playerId);
+                            sender.recordUpdateSequence(player);
+                            eventQueue.postPlayerInfo(player, info -> handlePlayerInfo(info, sender));
+                        });
+                    }
+                    break;
 
-                        CompletableFuture<PlayerInventoryPayload> future = pendingRequests.remove(inventory.playerId);
+                case COMPONENT_SUBSCRIPTION:
+                    sender.componentSubscription.subscribe(new ComponentSubscriptionPayload(message.getPayloadByteBuf()));
+                    break;
+
+                case VISIBLE_PLAYERS:
+                    VisiblePlayersPayload visiblePlayers = new VisiblePlayersPayload(message.getPayloadByteBuf());
+                    if (networkManager.isHost()) networkManager.getInterestManager().onVisiblePlayers(sender, visiblePlayers.playerIds);
+                    break;
 
-                        if (future == null) return; // No pending request for this player
+                case PLAYER_INDEX:
+                    sender.playerIndices.putAll(new PlayerIndexPayload(message.getPayloadByteBuf()).indices);
+                    break;
 
-                        if (inventory.hasData()) {
-                            future.complete(inventory);
-                        } else {
-                            String errorMessage = inventory.isEnderChest()
-                                ? "Ender chest data unavailable - player must open their ender chest at least once before it can be tracked"
-                                : "Player inventory data unavailable";
+                case PLAYER_INVENTORY:
+                    PlayerInventoryPayload inventory = new PlayerInventoryPayload(message.getPayloadByteBuf());
 
-                            future.completeExceptionally(new IllegalStateException(errorMessage));
-                        }
-                    }
+                    whenStacksFetched(message, sender, missing -> {
+                        inventory.replaceStacks(missing::resolve);
+                        // Stacks the fetch did not bring would show as empty slots
+                        handlePlayerInventory(inventory, sender, missing.hasUnresolved());
+                    });
                     break;
 
                 case PLAYER_DISCONNECT:
                     UUID playerId = message.getPayloadByteBuf().readUuid();
-
-                    PlayerInfoPayload lastInfo = networkManager.connectedPlayers.remove(playerId);
                     sender.announcedPlayers.remove(playerId);
-
-                    for (PlayerInfoHandler handler : playerInfoHandlers) {
-                        handler.onPlayerDisconnect(playerId, lastInfo);
-                    }
-                    if (lastInfo != null) ClientCore.onPlayerDisconnected(lastInfo);
+                    sender.forgetUpdateSequence(playerId);
+
+                    // An update still waiting for this player is applied first, updates arriving later start a new entry
+                    PlayerInfoPayload pendingInfo = eventQueue.takePendingPlayerInfo(playerId);
+                    eventQueue.post(() -> {
+                        if (pendingInfo != null) handlePlayerInfo(pendingInfo, sender);
+                        handlePlayerDisconnect(playerId);
+                    });
                     break;
 
                 case PACKET:
-                    handlePacket(message);
+                    eventQueue.post(() -> handlePacket(message));
+                    break;
+
+                case ITEM_STACK:
+                    ItemStackPayload stacks = new ItemStackPayload(message.getPayloadByteBuf());
+
+                    if (stacks.isRequest) {
+                        sender.sendMessage(ItemStackPayload.respond(stacks.hashes).message());
+                    } else {
+                        // Found stacks were cached while reading, the rest stay empty until they are sent in full again
+                        for (long hash : stacks.hashes) completeStackFetch(hash);
+                    }
                     break;
 
                 default:
@@ -126,6 +175,84 @@ public class P2PMessageHandler {
         }
     }
 
+    private void handlePlayerInventory(PlayerInventoryPayload inventory, PeerConnection sender, boolean incomplete) {
+        if (inventory.isRequest()) {
+            eventQueue.post(() -> {
+                ClientPlayerEntity player = MinecraftClient.getInstance().player;
+
+                if (player == null || !player.getUuid().equals(inventory.playerId)) return;
+
+                if (inventory.isSubscription()) {
+                    inventorySubscriptions.onRequest(inventory, player);
+                } else {
+                    sender.sendMessage(PlayerInventoryPayload.respond(player, inventory.isEnderChest()).message());
+                }
+            });
+        } else {
+            eventQueue.post(() -> inventorySubscriptions.onResponse(inventory, incomplete));
+            if (inventory.isDiff()) return;
+
+            ConcurrentMap<UUID, CompletableFuture<PlayerInventoryPayload>> pendingRequests = inventory.isEnderChest()
+                ? pendingEnderChestRequests : pendingInventoryRequests;
+
+            CompletableFuture<PlayerInventoryPayload> future = pendingRequests.remove(inventory.playerId);
+
+            if (future == null) return; // No pending request for this player
+
+            if (incomplete) {
+                future.completeExceptionally(new IllegalStateException("Some items could not be fetched from the owner"));
+            } else if (inventory.hasData()) {
+                future.complete(inventory);
+            } else {
+                future.completeExceptionally(new IllegalStateException(inventory.getMissingDataMessage()));
+            }
+        }
+    }
+
+    /**
+     * Runs the rest of handling a decoded message once the item stacks missing while decoding it were fetched from the
+     * peer that sent it, or the fetch timed out, right away if none were missing. The message is not decoded again,
+     * the continuation replaces its placeholders. Until then, later messages with the same ordering key are held back
+     * on the inbound lane, so they still apply after it.
+     */
+    private void whenStacksFetched(P2PMessage message, PeerConnection sender, Consumer<ItemStackCache.MissingStacks> continuation) {
+        ItemStackCache.MissingStacks missing = ItemStackCache.takeMissingStacks();
+        if (missing.isEmpty()) {
+            continuation.accept(missing);
+            return;
+        }
+
+        List<Long> hashes = missing.getHashes();
+        List<Long> requested = new ArrayList<>();
+        List<CompletableFuture<Void>> fetches = new ArrayList<>(hashes.size());
+
+        for (long hash : hashes) {
+            fetches.add(pendingStackFetches.computeIfAbsent(hash, h -> {
+                requested.add(h);
+
+                CompletableFuture<Void> fetch = new CompletableFuture<Void>()
+                    .completeOnTimeout(null, ITEM_STACK_FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                fetch.whenComplete((r, e) -> pendingStackFetches.remove(h, fetch));
+                return fetch;
+            }));
+        }
+
+        // Hashes already being fetched for an earlier message are not requested again
+        if (!requested.isEmpty()) sender.sendMessage(ItemStackPayload.request(requested).message());
+
+        InboundPipeline pipeline = networkManager.getInboundPipeline();
+        int key = P2PNetworkManager.orderingKeyOf(message);
+        pipeline.hold(key);
+
+        CompletableFuture.allOf(fetches.toArray(CompletableFuture[]::new))
+            .whenComplete((r, e) -> pipeline.resume(key, () -> continuation.accept(missing)));
+    }
+
+    private void completeStackFetch(long hash) {
+        CompletableFuture<Void> fetch = pendingStackFetches.get(hash);
+        if (fetch != null) fetch.complete(null);
+    }
+
     public CompletableFuture<PlayerInventoryPayload> requestInventory(UUID playerId, boolean isEnderChest) {
         ConcurrentMap<UUID, CompletableFuture<PlayerInventoryPayload>> pendingRequests = isEnderChest
             ? pendingEnderChestRequests : pendingInventoryRequests;
@@ -145,19 +272,23 @@ public class P2PMessageHandler {
     }
 
     @Nullable
-    private UUID getClientPlayerUuid() {
+    public UUID getClientPlayerUuid() {
         ClientPlayerEntity player = MinecraftClient.getInstance().player;
         if (player == null) { return null; }
         return player.getUuid();
     }
 
     private void handlePlayerInfo(PlayerInfoPayload infoPayload, PeerConnection sender) {
-        PlayerInfoPayload existingPlayerInfo = networkManager.connectedPlayers.putIfAbsent(infoPayload.playerId, infoPayload);
-        sender.announcedPlayers.add(infoPayload.playerId);
+        if (infoPayload.playerId.equals(getClientPlayerUuid())) return;
 
-        if (existingPlayerInfo != null) {
-            existingPlayerInfo.merge(infoPayload);
+        PlayerInfoPayload playerInfo = networkManager.connectedPlayers.computeIfAbsent(infoPayload.playerId, PlayerInfoPayload::new);
+
+        // The host serializes roster entries from network threads when a peer joins
+        synchronized (playerInfo) {
+            infoPayload.removePartialsWithoutBase(playerInfo);
+            playerInfo.merge(infoPayload);
         }
+        if (networkManager.isHost()) networkManager.getInterestManager().updatePosition(playerInfo);
 
         if (infoPayload.hasFlag(PlayerInfoPayload.FLAGS.NEW_CONNECTION)
             && infoPayload.getComponent(PlayerBasicData.class) != null) {
@@ -169,6 +300,18 @@ public class P2PMessageHandler {
         }
     }
 
+    private void handlePlayerDisconnect(UUID playerId) {
+        PlayerInfoPayload lastInfo = networkManager.connectedPlayers.remove(playerId);
+        PlayerPositionData.forgetKeyframe(playerId);
+        networkManager.getInterestManager().removePlayer(playerId);
+        networkManager.getComponentFilter().removePlayer(playerId);
+
+        for (PlayerInfoHandler handler : playerInfoHandlers) {
+            handler.onPlayerDisconnect(playerId, lastInfo);
+        }
+        if (lastInfo != null) ClientCore.onPlayerDisconnected(lastInfo);
+    }
+
     private void handlePacket(P2PMessage message) {
         MinecraftClient client = MinecraftClient.getInstance();
         ClientPlayNetworkHandler networkHandler = client.getNetworkHandler();
@@ -8,7 +8,19 @@ public enum P2PMessageType {
     PLAYER_INFO(4),
     PLAYER_INVENTORY(5),
     PLAYER_DISCONNECT(6),
-    PACKET(7);
+    PACKET(7),
+    WORLD_SNAPSHOT(8, false),
+    PLAYER_INDEX(9, false),
+    /** Wraps another message compressed with {@link MessageCompression}, never handled itself */
+    COMPRESSED(10, false),
+    /** Fetches item stacks a receiver only got the {@link dev.hintsystem.playerrelay.payload.ItemStackCache} hash of */
+    ITEM_STACK(11, false),
+    /** Tells the host which player components this peer wants, see {@link dev.hintsystem.playerrelay.networking.ComponentFilter} */
+    COMPONENT_SUBSCRIPTION(12, false),
+    /** Tells the host which players this peer already sees as entities, see {@link dev.hintsystem.playerrelay.EntityVisibilityTracker} */
+    VISIBLE_PLAYERS(13, false),
+    /** A reliable UDP message resent over TCP with its stream sequence, see {@link dev.hintsystem.playerrelay.networking.ReliableUdpChannel} */
+    RELIABLE_FALLBACK(14, false);
 
     private final byte id;
     private final boolean shouldForward;
@@ -0,0 +1,253 @@
+package dev.hintsystem.playerrelay.networking.transport;
+
+import dev.hintsystem.playerrelay.logging.PlayerRelayLogger;
+import dev.hintsystem.playerrelay.networking.P2PNetworkManager;
+import dev.hintsystem.playerrelay.networking.PeerConnection;
+import dev.hintsystem.playerrelay.networking.NetworkProtocol;
+import dev.hintsystem.playerrelay.networking.message.P2PMessage;
+
+import jdk.net.ExtendedSocketOptions;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Thread-per-socket transport built on {@link ServerSocket}, {@link Socket} and {@link DatagramSocket} */
+public class BlockingTransport implements Transport {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    private final PlayerRelayLogger logger;
+    private final P2PNetworkManager manager;
+    private final ExecutorService executor;
+
+    private ServerSocket serverSocket;
+    private DatagramSocket udpSocket;
+
+    public BlockingTransport(P2PNetworkManager manager, ExecutorService executor) {
+        this.logger = manager.logger;
+        this.manager = manager;
+        this.executor = executor;
+    }
+
+    @Override
+    public void bindTcp(int port) throws IOException {
+        ServerSocket socket = new ServerSocket(port);
+        serverSocket = socket;
+        executor.submit(() -> acceptTcpConnections(socket));
+    }
+
+    @Override
+    public void bindUdp(int port) throws IOException {
+        DatagramSocket socket = new DatagramSocket(port);
+        socket.setSoTimeout(P2PNetworkManager.UDP_RECEIVE_TIMEOUT);
+
+        // Oversized path MTU probes are dropped instead of fragmented, see PathMtuDiscovery
+        if (socket.supportedOptions().contains(ExtendedSocketOptions.IP_DONTFRAGMENT)) {
+            socket.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+        }
+
+        udpSocket = socket;
+        executor.submit(() -> receiveUdpMessages(socket));
+    }
+
+    @Override
+    public TcpChannel connect(InetSocketAddress address, int timeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, timeoutMs);
+            return new BlockingTcpChannel(socket, true);
+        } catch (IOException e) {
+            try { socket.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    @Override
+    public void sendDatagram(byte[] data, int offset, int length, InetSocketAddress target) throws IOException {
+        DatagramSocket socket = udpSocket;
+        if (socket == null) throw new IOException("UDP socket not open");
+
+        socket.send(new DatagramPacket(data, offset, length, target));
+    }
+
+    private void acceptTcpConnections(ServerSocket socket) {
+        while (manager.isRunning() && !socket.isClosed()) {
+            try {
+                manager.onTcpAccepted(new BlockingTcpChannel(socket.accept(), false));
+            } catch (IOException e) {
+                if (manager.isRunning() && !socket.isClosed()) {
+                    logger.error().message("Error accepting connection: {}", e.getMessage()).build();
+                }
+            }
+        }
+    }
+
+    private void receiveUdpMessages(DatagramSocket socket) {
+        byte[] buffer = new byte[P2PNetworkManager.MAX_UDP_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        logger.info().message("UDP socket listening on port {}", socket.getLocalPort()).build();
+        while (manager.isRunning() && !socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+
+                manager.onDatagramReceived(packet.getData(), packet.getLength(), (InetSocketAddress) packet.getSocketAddress());
+            } catch (SocketTimeoutException e) {
+                // Normal timeout, continue loop
+            } catch (IOException e) {
+                if (manager.isRunning() && !socket.isClosed()) {
+                    logger.error().message("Error receiving UDP packet: {}", e.getMessage()).build();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isTcpBound() { return serverSocket != null && !serverSocket.isClosed(); }
+
+    @Override
+    public boolean isUdpBound() { return udpSocket != null && !udpSocket.isClosed(); }
+
+    @Override
+    public int getTcpPort() { return isTcpBound() ? serverSocket.getLocalPort() : -1; }
+
+    @Override
+    public int getUdpPort() { return isUdpBound() ? udpSocket.getLocalPort() : -1; }
+
+    @Override
+    public void closeTcp() {
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.error().message("Error closing TCP server socket: {}", e.getMessage()).build();
+            }
+        }
+        serverSocket = null;
+    }
+
+    @Override
+    public void closeUdp() {
+        if (udpSocket != null && !udpSocket.isClosed()) udpSocket.close();
+        udpSocket = null;
+    }
+
+    @Override
+    public void shutdown() {
+        closeTcp();
+        closeUdp();
+    }
+
+    private class BlockingTcpChannel implements TcpChannel {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final OutputStream output;
+        private final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+        private int writeBufferLength = 0;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+        private volatile PeerConnection peer;
+        private byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        private boolean expectLegacyHandshake;
+
+        BlockingTcpChannel(Socket socket, boolean isConnectingSide) throws IOException {
+            this.socket = socket;
+            this.socket.setTcpNoDelay(true);
+            this.output = socket.getOutputStream();
+            this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE));
+            this.expectLegacyHandshake = isConnectingSide;
+        }
+
+        @Override
+        public void open(PeerConnection peer) {
+            this.peer = peer;
+            requestFlush();
+
+            executor.submit(() -> {
+                Exception error = null;
+                try {
+                    while (!socket.isClosed()) {
+                        peer.onTcpMessage(readMessage());
+                    }
+                } catch (Exception e) {
+                    error = e;
+                } finally {
+                    peer.onTcpClosed(error);
+                }
+            });
+        }
+
+        private P2PMessage readMessage() throws IOException {
+            boolean legacy = expectLegacyHandshake;
+            expectLegacyHandshake = false;
+
+            byte legacyType = legacy ? input.readByte() : 0;
+            int length = FrameCodec.validateLength(input.readInt(), legacy);
+
+            if (readBuffer.length < length) readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+            input.readFully(readBuffer, 0, length);
+
+            ByteBuffer body = ByteBuffer.wrap(readBuffer, 0, length);
+            return legacy ? FrameCodec.decodeLegacy(legacyType, body) : P2PMessage.decode(body, NetworkProtocol.TCP);
+        }
+
+        @Override
+        public void requestFlush() {
+            if (peer != null && flushScheduled.compareAndSet(false, true)) executor.submit(this::flush);
+        }
+
+        /** Drains the peer's outbound queue, at most one flush runs per channel at a time */
+        private void flush() {
+            try {
+                do {
+                    ByteBuffer frame;
+                    while ((frame = peer.pollTcpFrame()) != null) write(frame);
+                    flushWriteBuffer();
+                    flushScheduled.set(false);
+                } while (peer.hasPendingOutbound() && flushScheduled.compareAndSet(false, true));
+            } catch (IOException e) {
+                flushScheduled.set(false);
+                close();
+                peer.onTcpClosed(e);
+            }
+        }
+
+        /** Copies the shared read-only frame into the write buffer, so queued frames go out in as few writes as possible */
+        private void write(ByteBuffer frame) throws IOException {
+            while (frame.hasRemaining()) {
+                if (writeBufferLength == writeBuffer.length) flushWriteBuffer();
+
+                int length = Math.min(frame.remaining(), writeBuffer.length - writeBufferLength);
+                frame.get(writeBuffer, writeBufferLength, length);
+                writeBufferLength += length;
+            }
+        }
+
+        private void flushWriteBuffer() throws IOException {
+            if (writeBufferLength == 0) return;
+
+            output.write(writeBuffer, 0, writeBufferLength);
+            writeBufferLength = 0;
+        }
+
+        @Override
+        public void close() {
+            // Closing the socket closes both streams without flushing buffered output to a possibly dead peer
+            try {
+                if (!socket.isClosed()) socket.close();
+            } catch (IOException e) {
+                logger.error().message("Error closing connection: {}", e.getMessage()).build();
+            }
+        }
+
+        @Override
+        public boolean isOpen() { return !socket.isClosed(); }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() { return (InetSocketAddress) socket.getRemoteSocketAddress(); }
+    }
+}
@@ -0,0 +1,103 @@
+package dev.hintsystem.playerrelay.networking.transport;
+
+import dev.hintsystem.playerrelay.networking.NetworkProtocol;
+import dev.hintsystem.playerrelay.networking.message.P2PMessage;
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Framing for the TCP stream. Every message is sent as one frame: a 4-byte body length followed by
+ * the body produced by {@link P2PMessage#encode(ByteBuffer)}, so a whole message is written with a
+ * single socket write and read back with a single length check.
+ * <p>
+ * The {@link P2PMessageType#RELAY_VERSION} message keeps the pre-framing layout
+ * ({@code [type][int payload length][payload]}), so peers running older network versions can still
+ * read it and report a version mismatch instead of failing on garbage. The host always sends it as
+ * the first message on a connection, so the connecting side decodes its first frame with that layout.
+ * The connecting side replies with its own version in the regular layout.
+ */
+public final class FrameCodec {
+    public static final int LENGTH_FIELD_SIZE = 4;
+    public static final int LEGACY_HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private FrameCodec() {}
+
+    /** Returns a buffer, ready for reading, that holds the complete frame for the message */
+    public static ByteBuffer encode(P2PMessage message) {
+        if (message.getType() == P2PMessageType.RELAY_VERSION) return encodeLegacy(message);
+        return encodeFramed(message);
+    }
+
+    /**
+     * Encodes the message with the regular layout, even a version handshake. The connecting side's version
+     * reply uses it, since the host reads every frame it receives with the regular layout.
+     */
+    public static ByteBuffer encodeFramed(P2PMessage message) {
+        int size = message.getEncodedSize();
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_FIELD_SIZE + size);
+        frame.putInt(size);
+        message.encode(frame);
+        return frame.flip();
+    }
+
+    /** Returns a frame holding an already encoded body */
+    public static ByteBuffer frame(byte[] body) {
+        return ByteBuffer.allocate(LENGTH_FIELD_SIZE + body.length).putInt(body.length).put(body).flip();
+    }
+
+    private static ByteBuffer encodeLegacy(P2PMessage message) {
+        int payloadLength = message.getPayloadLength();
+
+        ByteBuffer frame = ByteBuffer.allocate(LEGACY_HEADER_SIZE + payloadLength);
+        frame.put(message.getType().getId());
+        frame.putInt(payloadLength);
+        frame.put(message.getPayloadBuffer());
+        return frame.flip();
+    }
+
+    /** Returns the size of the frame header, which must be available before {@link #bodyLength} can be called */
+    public static int headerSize(boolean legacy) { return legacy ? LEGACY_HEADER_SIZE : LENGTH_FIELD_SIZE; }
+
+    /** Reads the body length from the frame header at the buffer's position without consuming it */
+    public static int bodyLength(ByteBuffer buffer, boolean legacy) throws IOException {
+        int length = buffer.getInt(buffer.position() + (legacy ? 1 : 0));
+        return validateLength(length, legacy);
+    }
+
+    public static int validateLength(int length, boolean legacy) throws IOException {
+        if (length < (legacy ? 0 : 1) || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Decodes the complete frame at the buffer's position and advances past it.
+     * The caller must ensure {@code headerSize + bodyLength} bytes are available.
+     */
+    public static P2PMessage decode(ByteBuffer buffer, boolean legacy) throws IOException {
+        int length = bodyLength(buffer, legacy);
+        int start = buffer.position() + headerSize(legacy);
+
+        P2PMessage message = legacy
+            ? decodeLegacy(buffer.get(buffer.position()), buffer.slice(start, length))
+            : P2PMessage.decode(buffer.slice(start, length), NetworkProtocol.TCP);
+
+        buffer.position(start + length);
+        return message;
+    }
+
+    public static P2PMessage decodeLegacy(byte typeId, ByteBuffer payload) throws IOException {
+        P2PMessageType type = P2PMessageType.fromId(typeId);
+        if (type != P2PMessageType.RELAY_VERSION) {
+            throw new IOException("Expected version handshake but received " + type);
+        }
+
+        byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+        return new P2PMessage(type, data, NetworkProtocol.TCP);
+    }
+}
@@ -0,0 +1,381 @@
+package dev.hintsystem.playerrelay.networking.transport;
+
+import dev.hintsystem.playerrelay.logging.PlayerRelayLogger;
+import dev.hintsystem.playerrelay.networking.P2PNetworkManager;
+import dev.hintsystem.playerrelay.networking.PeerConnection;
+import dev.hintsystem.playerrelay.networking.message.P2PMessage;
+
+import jdk.net.ExtendedSocketOptions;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transport that multiplexes the TCP listener, every peer connection and the UDP socket onto a
+ * single {@link Selector} thread, so the number of threads stays constant regardless of peer count.
+ * <p>
+ * Reads and writes never block: outgoing data is queued per channel and flushed when the socket
+ * becomes writable. Any work coming from other threads is handed to the event loop through
+ * {@link #execute(Runnable)}.
+ */
+public class NioTransport implements Transport {
+    private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_WRITE_BATCH = 32;
+
+    private final PlayerRelayLogger logger;
+    private final P2PNetworkManager manager;
+
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer udpReceiveBuffer = ByteBuffer.allocate(P2PNetworkManager.MAX_UDP_PACKET_SIZE);
+
+    private Selector selector;
+    private Thread eventLoop;
+    private volatile boolean running = false;
+
+    private ServerSocketChannel serverChannel;
+    private DatagramChannel udpChannel;
+
+    public NioTransport(P2PNetworkManager manager) {
+        this.logger = manager.logger;
+        this.manager = manager;
+    }
+
+    private synchronized void ensureEventLoop() throws IOException {
+        if (running) return;
+
+        selector = Selector.open();
+        running = true;
+        eventLoop = new Thread(this::runEventLoop, "PlayerRelay NIO Event Loop");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    /** Runs the task on the event loop thread, waking up the selector if needed */
+    private void execute(Runnable task) {
+        if (Thread.currentThread() == eventLoop) {
+            task.run();
+            return;
+        }
+
+        pendingTasks.add(task);
+        Selector current = selector;
+        if (current != null) current.wakeup();
+    }
+
+    private void runEventLoop() {
+        while (running) {
+            try {
+                selector.select();
+
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+                    processKey(key);
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                if (running) logger.error().message("Error in NIO event loop: {}", e.getMessage()).build();
+            }
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        Object attachment = key.attachment();
+
+        if (attachment instanceof NioTcpChannel channel) {
+            try {
+                if (key.isReadable()) channel.onReadable();
+                if (key.isValid() && key.isWritable()) channel.onWritable();
+            } catch (Exception e) {
+                channel.fail(e);
+            }
+        } else if (key.channel() == serverChannel && key.isAcceptable()) {
+            acceptTcpConnection();
+        } else if (key.channel() == udpChannel && key.isReadable()) {
+            receiveUdpMessages();
+        }
+    }
+
+    @Override
+    public void bindTcp(int port) throws IOException {
+        ensureEventLoop();
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        serverChannel = channel;
+        execute(() -> register(channel, SelectionKey.OP_ACCEPT, null));
+    }
+
+    @Override
+    public void bindUdp(int port) throws IOException {
+        ensureEventLoop();
+
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+
+            // Oversized path MTU probes are dropped instead of fragmented, see PathMtuDiscovery
+            if (channel.supportedOptions().contains(ExtendedSocketOptions.IP_DONTFRAGMENT)) {
+                channel.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        udpChannel = channel;
+        execute(() -> register(channel, SelectionKey.OP_READ, null));
+        logger.info().message("UDP socket listening on port {}", getUdpPort()).build();
+    }
+
+    private void register(SelectableChannel channel, int ops, Object attachment) {
+        try {
+            channel.register(selector, ops, attachment);
+        } catch (ClosedChannelException e) {
+            // Channel was closed before the event loop got to it
+        }
+    }
+
+    @Override
+    public TcpChannel connect(InetSocketAddress address, int timeoutMs) throws IOException {
+        ensureEventLoop();
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            // Connect in blocking mode so callers get the same timeout semantics as the blocking transport
+            channel.socket().connect(address, timeoutMs);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new NioTcpChannel(channel, true);
+    }
+
+    private void acceptTcpConnection() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                manager.onTcpAccepted(new NioTcpChannel(channel, false));
+            }
+        } catch (IOException e) {
+            if (manager.isRunning()) logger.error().message("Error accepting connection: {}", e.getMessage()).build();
+        }
+    }
+
+    private void receiveUdpMessages() {
+        try {
+            SocketAddress source;
+            while ((source = udpChannel.receive(udpReceiveBuffer.clear())) != null) {
+                manager.onDatagramReceived(udpReceiveBuffer.array(), udpReceiveBuffer.position(), (InetSocketAddress) source);
+            }
+        } catch (IOException e) {
+            if (manager.isRunning()) logger.error().message("Error receiving UDP packet: {}", e.getMessage()).build();
+        }
+    }
+
+    @Override
+    public void sendDatagram(byte[] data, int offset, int length, InetSocketAddress target) throws IOException {
+        DatagramChannel channel = udpChannel;
+        if (channel == null) throw new IOException("UDP socket not open");
+
+        // A full send buffer drops the datagram, which is acceptable for unreliable traffic
+        channel.send(ByteBuffer.wrap(data, offset, length), target);
+    }
+
+    @Override
+    public boolean isTcpBound() { return serverChannel != null && serverChannel.isOpen(); }
+
+    @Override
+    public boolean isUdpBound() { return udpChannel != null && udpChannel.isOpen(); }
+
+    @Override
+    public int getTcpPort() { return isTcpBound() ? serverChannel.socket().getLocalPort() : -1; }
+
+    @Override
+    public int getUdpPort() { return isUdpBound() ? udpChannel.socket().getLocalPort() : -1; }
+
+    @Override
+    public boolean isEventLoopThread() { return Thread.currentThread() == eventLoop; }
+
+    @Override
+    public void closeTcp() {
+        closeQuietly(serverChannel);
+        serverChannel = null;
+    }
+
+    @Override
+    public void closeUdp() {
+        closeQuietly(udpChannel);
+        udpChannel = null;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        closeTcp();
+        closeUdp();
+
+        if (!running) return;
+        running = false;
+
+        closeQuietly(selector);
+        selector = null;
+        eventLoop = null;
+        pendingTasks.clear();
+    }
+
+    private void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.error().message("Error closing channel: {}", e.getMessage()).build();
+        }
+    }
+
+    private class NioTcpChannel implements TcpChannel {
+        private final SocketChannel channel;
+        private final InetSocketAddress remoteAddress;
+        private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+        // Frames are shared read-only views, so a batch is written with one gathering write and no copying
+        private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
+        private int batchOffset = 0;
+        private int batchLength = 0;
+
+        private SelectionKey key;
+        private PeerConnection peer;
+        private boolean expectLegacyHandshake;
+        private volatile boolean closed = false;
+
+        NioTcpChannel(SocketChannel channel, boolean isConnectingSide) throws IOException {
+            this.channel = channel;
+            this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+            this.expectLegacyHandshake = isConnectingSide;
+        }
+
+        @Override
+        public void open(PeerConnection peer) {
+            this.peer = peer;
+            execute(() -> {
+                try {
+                    key = channel.register(selector, SelectionKey.OP_READ, this);
+                    if (peer.hasPendingOutbound()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0) throw new EOFException("Connection closed by peer");
+
+            readBuffer.flip();
+            int requiredSize = 0;
+            while (true) {
+                int headerSize = FrameCodec.headerSize(expectLegacyHandshake);
+                if (readBuffer.remaining() < headerSize) break;
+
+                requiredSize = headerSize + FrameCodec.bodyLength(readBuffer, expectLegacyHandshake);
+                if (readBuffer.remaining() < requiredSize) break;
+
+                P2PMessage message = FrameCodec.decode(readBuffer, expectLegacyHandshake);
+                expectLegacyHandshake = false;
+                requiredSize = 0;
+
+                peer.onTcpMessage(message);
+                if (closed) return;
+            }
+            readBuffer.compact();
+
+            // Grow the buffer so a frame larger than it can be received in full
+            if (requiredSize > readBuffer.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocate(requiredSize);
+                grown.put(readBuffer.flip());
+                readBuffer = grown;
+            }
+        }
+
+        void onWritable() throws IOException {
+            while (true) {
+                if (batchOffset == batchLength) {
+                    batchOffset = 0;
+                    batchLength = 0;
+
+                    ByteBuffer frame;
+                    while (batchLength < writeBatch.length && (frame = peer.pollTcpFrame()) != null) {
+                        writeBatch[batchLength++] = frame;
+                    }
+                    if (batchLength == 0) break;
+                }
+
+                channel.write(writeBatch, batchOffset, batchLength - batchOffset);
+                while (batchOffset < batchLength && !writeBatch[batchOffset].hasRemaining()) {
+                    writeBatch[batchOffset++] = null;
+                }
+
+                if (batchOffset < batchLength) return; // Socket buffer full, wait for next writable event
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            // A message may have been queued between the last poll and clearing OP_WRITE
+            if (peer.hasPendingOutbound()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void fail(Exception e) {
+            if (closed) return;
+            close();
+            if (peer != null) peer.onTcpClosed(e);
+        }
+
+        @Override
+        public void requestFlush() {
+            if (closed || !flushRequested.compareAndSet(false, true)) return;
+
+            execute(() -> {
+                flushRequested.set(false);
+                if (key != null && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            });
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+
+            if (key != null) key.cancel();
+            closeQuietly(channel);
+        }
+
+        @Override
+        public boolean isOpen() { return !closed && channel.isOpen(); }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() { return remoteAddress; }
+    }
+}
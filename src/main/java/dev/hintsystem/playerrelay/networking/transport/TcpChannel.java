@@ -0,0 +1,26 @@
+package dev.hintsystem.playerrelay.networking.transport;
+
+import dev.hintsystem.playerrelay.networking.PeerConnection;
+
+import java.net.InetSocketAddress;
+
+/** A single TCP connection to a peer, owned by a {@link Transport} */
+public interface TcpChannel {
+    /**
+     * Starts delivering received messages to the peer through {@link PeerConnection#onTcpMessage}.
+     * When the channel fails or is closed remotely, {@link PeerConnection#onTcpClosed} is called.
+     */
+    void open(PeerConnection peer);
+
+    /**
+     * Signals that the peer has queued outbound messages. The channel drains them on its own
+     * thread through {@link PeerConnection#pollTcpFrame()}, so this never blocks the caller.
+     */
+    void requestFlush();
+
+    void close();
+
+    boolean isOpen();
+
+    InetSocketAddress getRemoteAddress();
+}
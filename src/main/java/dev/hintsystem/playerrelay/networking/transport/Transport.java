@@ -0,0 +1,41 @@
+package dev.hintsystem.playerrelay.networking.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Socket layer used by {@link dev.hintsystem.playerrelay.networking.P2PNetworkManager}.
+ * <p>
+ * Implementations own the listening TCP socket and the shared UDP socket, and report accepted
+ * connections and received datagrams back to the network manager.
+ */
+public interface Transport {
+    /** Binds the TCP listener to the given port and starts accepting peers */
+    void bindTcp(int port) throws IOException;
+
+    /** Binds the UDP socket to the given port (0 for an ephemeral port) and starts receiving datagrams */
+    void bindUdp(int port) throws IOException;
+
+    /** Opens a TCP connection to a remote peer, blocking until connected or the timeout expires */
+    TcpChannel connect(InetSocketAddress address, int timeoutMs) throws IOException;
+
+    void sendDatagram(byte[] data, int offset, int length, InetSocketAddress target) throws IOException;
+
+    boolean isTcpBound();
+    boolean isUdpBound();
+
+    /** Returns the bound TCP port, or -1 if not listening */
+    int getTcpPort();
+
+    /** Returns the bound UDP port, or -1 if no UDP socket is open */
+    int getUdpPort();
+
+    /** Returns true if the calling thread drains outbound queues and therefore must never wait on one */
+    default boolean isEventLoopThread() { return false; }
+
+    void closeTcp();
+    void closeUdp();
+
+    /** Closes all sockets and stops any threads owned by this transport */
+    void shutdown();
+}
@@ -0,0 +1,8 @@
+package dev.hintsystem.playerrelay.networking.transport;
+
+public enum TransportType {
+    /** One blocking reader thread per peer plus dedicated accept and UDP threads */
+    BLOCKING,
+    /** All TCP and UDP sockets multiplexed onto a single selector thread */
+    NIO
+}
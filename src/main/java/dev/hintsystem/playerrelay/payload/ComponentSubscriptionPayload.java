@@ -0,0 +1,58 @@
+package dev.hintsystem.playerrelay.payload;
+
+import dev.hintsystem.playerrelay.PlayerRelay;
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+import dev.hintsystem.playerrelay.payload.player.PlayerEquipmentData;
+import dev.hintsystem.playerrelay.payload.player.PlayerStatsData;
+import dev.hintsystem.playerrelay.payload.player.PlayerStatusEffectsData;
+
+import net.minecraft.network.RegistryByteBuf;
+
+/**
+ * Tells the host how often this client wants each {@link PlayerInfoPayload} component of other players,
+ * sent after the version handshake and whenever the config changes. Hosts forward everything to peers that never sent one.
+ * <p>
+ * Intervals are in registry order, 0 means every update. Components the client does not show are still wanted
+ * every {@value #UNUSED_INTERVAL_MS} ms, so commands and peek screens see recent data.
+ */
+public class ComponentSubscriptionPayload implements IPayload {
+    public static final int UNUSED_INTERVAL_MS = 5000;
+
+    public final int[] minIntervalsMs;
+
+    public ComponentSubscriptionPayload(int[] minIntervalsMs) {
+        this.minIntervalsMs = minIntervalsMs;
+    }
+
+    public ComponentSubscriptionPayload(RegistryByteBuf buf) {
+        int count = buf.readVarInt();
+        // Components this client does not know are wanted on every update, components the peer did not list too
+        this.minIntervalsMs = new int[PlayerInfoPayload.getRegistrySize()];
+
+        for (int i = 0; i < count; i++) {
+            int interval = buf.readVarInt();
+            if (i < minIntervalsMs.length) minIntervalsMs[i] = interval;
+        }
+    }
+
+    /** The components the local client renders, the player list shows everything beyond the name, world and position */
+    public static ComponentSubscriptionPayload forLocalClient() {
+        int[] intervals = new int[PlayerInfoPayload.getRegistrySize()];
+        int playerListInterval = PlayerRelay.config.showPlayerList ? 0 : UNUSED_INTERVAL_MS;
+
+        intervals[PlayerInfoPayload.getRegistryIndex(PlayerStatsData.class)] = playerListInterval;
+        intervals[PlayerInfoPayload.getRegistryIndex(PlayerEquipmentData.class)] = playerListInterval;
+        intervals[PlayerInfoPayload.getRegistryIndex(PlayerStatusEffectsData.class)] = playerListInterval;
+
+        return new ComponentSubscriptionPayload(intervals);
+    }
+
+    @Override
+    public P2PMessageType getMessageType() { return P2PMessageType.COMPONENT_SUBSCRIPTION; }
+
+    @Override
+    public void write(RegistryByteBuf buf) {
+        buf.writeVarInt(minIntervalsMs.length);
+        for (int interval : minIntervalsMs) buf.writeVarInt(interval);
+    }
+}
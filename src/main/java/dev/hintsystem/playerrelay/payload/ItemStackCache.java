@@ -0,0 +1,252 @@
+package dev.hintsystem.playerrelay.payload;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.network.RegistryByteBuf;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes item stacks by a hash of their encoded form once peers have seen them, so recurring enchanted tools
+ * and shulker boxes are sent in full only once.
+ * <p>
+ * Every stack is {@code [EMPTY]}, {@code [FULL][ItemStack]} or {@code [CACHED][long hash]}. Receivers hash the
+ * encoded bytes of every full stack they read and keep the decoded stack in a least recently used cache of at most
+ * {@value #MAX_ENTRIES} stacks and {@value #MAX_CACHED_BYTES} encoded bytes. A stack is only sent as a hash if it
+ * was sent in full within the last {@value #FULL_RESEND_INTERVAL_MS} ms, so a receiver that evicted it recovers soon.
+ * <p>
+ * A hash the receiver does not know decodes as an empty placeholder stack and is recorded as missing, the message
+ * handler then fetches it with an {@link ItemStackPayload} and replaces the placeholder, see {@link MissingStacks}.
+ */
+public final class ItemStackCache {
+    private static final byte EMPTY = 0, FULL = 1, CACHED = 2;
+
+    /** Smaller stacks are cheaper to send than their hash */
+    public static final int MIN_CACHED_SIZE = 24;
+    public static final int MAX_ENTRIES = 2048;
+    public static final int MAX_CACHED_BYTES = 2 * 1024 * 1024;
+    public static final long FULL_RESEND_INTERVAL_MS = 10_000;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static class Entry {
+        final ItemStack stack;
+        final int size;
+        long lastSentFullAt = 0;
+
+        Entry(ItemStack stack, int size) {
+            this.stack = stack;
+            this.size = size;
+        }
+    }
+
+    private static final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private static int cachedBytes = 0;
+
+    private static long hits = 0;
+    private static long misses = 0;
+
+    // Placeholders for the hashes the current thread could not resolve while decoding a message
+    private static final ThreadLocal<Map<ItemStack, Long>> missingStacks = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    /** Stacks missing while decoding a message, each decoded as a distinct empty placeholder that is replaced once fetched */
+    public static final class MissingStacks {
+        private static final MissingStacks NONE = new MissingStacks(Map.of());
+
+        private final Map<ItemStack, Long> placeholders;
+        private boolean unresolved = false;
+
+        private MissingStacks(Map<ItemStack, Long> placeholders) { this.placeholders = placeholders; }
+
+        public boolean isEmpty() { return placeholders.isEmpty(); }
+        public List<Long> getHashes() { return placeholders.values().stream().distinct().toList(); }
+
+        /** Returns the fetched stack a placeholder stands for, empty if it is still missing, and any other stack as is */
+        public ItemStack resolve(ItemStack stack) {
+            Long hash = placeholders.get(stack);
+            if (hash == null) return stack;
+
+            ItemStack cached = get(hash);
+            if (cached != null) return cached;
+
+            unresolved = true;
+            return ItemStack.EMPTY;
+        }
+
+        /** Returns true if a placeholder was resolved as empty, because its stack could not be fetched */
+        public boolean hasUnresolved() { return unresolved; }
+    }
+
+    private ItemStackCache() {}
+
+    public static void write(RegistryByteBuf buf, ItemStack stack) {
+        if (stack.isEmpty()) {
+            buf.writeByte(EMPTY);
+            return;
+        }
+
+        RegistryByteBuf encoded = new RegistryByteBuf(Unpooled.buffer(), buf.getRegistryManager());
+        try {
+            ItemStack.OPTIONAL_PACKET_CODEC.encode(encoded, stack);
+            int size = encoded.readableBytes();
+
+            if (size >= MIN_CACHED_SIZE) {
+                long hash = hash(encoded, 0, size);
+
+                if (wasSentRecently(hash, stack, size)) {
+                    buf.writeByte(CACHED);
+                    buf.writeLong(hash);
+                    return;
+                }
+            }
+
+            buf.writeByte(FULL);
+            buf.writeBytes(encoded);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /** Writes the stack in full, for fetch responses that must never refer to the cache */
+    public static void writeFull(RegistryByteBuf buf, ItemStack stack) {
+        if (stack.isEmpty()) {
+            buf.writeByte(EMPTY);
+            return;
+        }
+
+        buf.writeByte(FULL);
+        ItemStack.OPTIONAL_PACKET_CODEC.encode(buf, stack);
+    }
+
+    public static ItemStack read(RegistryByteBuf buf) {
+        byte kind = buf.readByte();
+
+        switch (kind) {
+            case EMPTY -> { return ItemStack.EMPTY; }
+            case FULL -> {
+                int start = buf.readerIndex();
+                ItemStack stack = ItemStack.OPTIONAL_PACKET_CODEC.decode(buf);
+                int size = buf.readerIndex() - start;
+
+                if (size >= MIN_CACHED_SIZE) put(hash(buf, start, size), stack.copy(), size);
+                return stack;
+            }
+            case CACHED -> {
+                long hash = buf.readLong();
+                ItemStack cached = get(hash);
+                if (cached != null) return cached;
+
+                // Empty like ItemStack.EMPTY, but a distinct instance the handler can find and replace
+                ItemStack placeholder = new ItemStack(Items.AIR);
+                missingStacks.get().put(placeholder, hash);
+                return placeholder;
+            }
+            default -> throw new IllegalArgumentException("Unknown item stack encoding: " + kind);
+        }
+    }
+
+    public static void writeList(RegistryByteBuf buf, List<ItemStack> stacks) {
+        buf.writeVarInt(stacks.size());
+        for (ItemStack stack : stacks) write(buf, stack);
+    }
+
+    public static List<ItemStack> readList(RegistryByteBuf buf) {
+        int count = buf.readVarInt();
+        List<ItemStack> stacks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) stacks.add(read(buf));
+        return stacks;
+    }
+
+    private static long hash(ByteBuf buf, int start, int size) {
+        return HASH.hashBytes(buf.nioBuffer(start, size)).asLong();
+    }
+
+    /** Returns true if the stack was sent in full recently, otherwise remembers that it is sent in full now */
+    private static synchronized boolean wasSentRecently(long hash, ItemStack stack, int size) {
+        long now = System.currentTimeMillis();
+
+        Entry entry = entries.get(hash);
+        if (entry == null) entry = put(hash, stack.copy(), size);
+        else if (now - entry.lastSentFullAt < FULL_RESEND_INTERVAL_MS) return true;
+
+        entry.lastSentFullAt = now;
+        return false;
+    }
+
+    private static synchronized Entry put(long hash, ItemStack stack, int size) {
+        Entry entry = entries.get(hash);
+        if (entry != null) return entry;
+
+        entry = new Entry(stack, size);
+        entries.put(hash, entry);
+        cachedBytes += size;
+
+        // Access order, so the least recently used stacks come first
+        Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > MAX_ENTRIES || cachedBytes > MAX_CACHED_BYTES) && it.hasNext()) {
+            Entry eldest = it.next();
+            if (eldest == entry) break;
+
+            it.remove();
+            cachedBytes -= eldest.size;
+        }
+        return entry;
+    }
+
+    /** Returns a copy of the cached stack, or null if it is not cached */
+    @Nullable
+    public static synchronized ItemStack get(long hash) {
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.stack.copy();
+    }
+
+    /** Starts collecting the stacks missing while decoding a message on this thread */
+    public static void beginDecode() { missingStacks.get().clear(); }
+
+    /** Returns the stacks that were missing since {@link #beginDecode()} */
+    public static MissingStacks takeMissingStacks() {
+        Map<ItemStack, Long> missing = missingStacks.get();
+        if (missing.isEmpty()) return MissingStacks.NONE;
+
+        MissingStacks taken = new MissingStacks(new IdentityHashMap<>(missing));
+        missing.clear();
+        return taken;
+    }
+
+    public static synchronized void clear() {
+        entries.clear();
+        cachedBytes = 0;
+    }
+
+    public static synchronized int size() { return entries.size(); }
+    public static synchronized int getCachedBytes() { return cachedBytes; }
+    public static synchronized long getHits() { return hits; }
+    public static synchronized long getMisses() { return misses; }
+
+    /** Returns copies of the cached stacks with one of the hashes, used to answer fetches */
+    public static synchronized Map<Long, ItemStack> getAll(List<Long> hashes) {
+        Map<Long, ItemStack> found = new LinkedHashMap<>();
+        for (long hash : hashes) {
+            Entry entry = entries.get(hash);
+            if (entry != null) found.put(hash, entry.stack.copy());
+        }
+        return found;
+    }
+}
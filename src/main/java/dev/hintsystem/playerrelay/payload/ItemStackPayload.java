@@ -0,0 +1,65 @@
+package dev.hintsystem.playerrelay.payload;
+
+import dev.hintsystem.playerrelay.networking.NetworkProtocol;
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.network.RegistryByteBuf;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asks the peer a message came from for item stacks missing in the {@link ItemStackCache}, or answers such a request.
+ * A response lists every requested hash with the stack in full, or empty if the peer does not have it either.
+ * The requester caches the stacks on reading.
+ */
+public class ItemStackPayload implements IPayload {
+    public final boolean isRequest;
+    public final List<Long> hashes;
+    public final Map<Long, ItemStack> stacks;
+
+    private ItemStackPayload(boolean isRequest, List<Long> hashes, Map<Long, ItemStack> stacks) {
+        this.isRequest = isRequest;
+        this.hashes = hashes;
+        this.stacks = stacks;
+    }
+
+    public static ItemStackPayload request(List<Long> hashes) { return new ItemStackPayload(true, hashes, Map.of()); }
+
+    public static ItemStackPayload respond(List<Long> requested) {
+        return new ItemStackPayload(false, requested, ItemStackCache.getAll(requested));
+    }
+
+    public ItemStackPayload(RegistryByteBuf buf) {
+        this.isRequest = buf.readBoolean();
+        int count = buf.readVarInt();
+        this.hashes = new ArrayList<>(count);
+        this.stacks = new LinkedHashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            long hash = buf.readLong();
+            hashes.add(hash);
+            if (!isRequest) stacks.put(hash, ItemStackCache.read(buf));
+        }
+    }
+
+    @Override
+    public P2PMessageType getMessageType() { return P2PMessageType.ITEM_STACK; }
+
+    @Override
+    public NetworkProtocol getPreferredProtocol() { return NetworkProtocol.RELIABLE_UDP; }
+
+    @Override
+    public void write(RegistryByteBuf buf) {
+        buf.writeBoolean(isRequest);
+        buf.writeVarInt(hashes.size());
+
+        for (long hash : hashes) {
+            buf.writeLong(hash);
+            if (!isRequest) ItemStackCache.writeFull(buf, stacks.getOrDefault(hash, ItemStack.EMPTY));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package dev.hintsystem.playerrelay.payload;
+
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+
+import net.minecraft.network.RegistryByteBuf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/** Tells a peer which short index stands for which player in the host's world snapshots */
+public class PlayerIndexPayload implements IPayload {
+    public final Map<Integer, UUID> indices;
+
+    public PlayerIndexPayload(Map<Integer, UUID> indices) {
+        this.indices = indices;
+    }
+
+    public PlayerIndexPayload(RegistryByteBuf buf) {
+        int count = buf.readVarInt();
+        this.indices = new HashMap<>(count);
+
+        for (int i = 0; i < count; i++) {
+            indices.put(buf.readVarInt(), buf.readUuid());
+        }
+    }
+
+    @Override
+    public P2PMessageType getMessageType() { return P2PMessageType.PLAYER_INDEX; }
+
+    @Override
+    public void write(RegistryByteBuf buf) {
+        buf.writeVarInt(indices.size());
+
+        for (Map.Entry<Integer, UUID> entry : indices.entrySet()) {
+            buf.writeVarInt(entry.getKey());
+            buf.writeUuid(entry.getValue());
+        }
+    }
+}
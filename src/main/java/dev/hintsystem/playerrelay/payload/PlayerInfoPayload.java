@@ -1,19 +1,24 @@
 package dev.hintsystem.playerrelay.payload;
 
 import dev.hintsystem.playerrelay.PlayerRelay;
+import dev.hintsystem.playerrelay.networking.NetworkProtocol;
 import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
 import dev.hintsystem.playerrelay.payload.player.*;
 
 import com.mojang.authlib.GameProfile;
+import io.netty.buffer.Unpooled;
 import net.minecraft.client.network.PlayerListEntry;
 import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.item.ItemStack;
 import net.minecraft.network.RegistryByteBuf;
 import net.minecraft.registry.RegistryKey;
 import net.minecraft.world.World;
 
 import org.jetbrains.annotations.Nullable;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 public class PlayerInfoPayload extends FlagHolder<PlayerInfoPayload.FLAGS>
     implements IPayload {
@@ -37,7 +42,9 @@ public class PlayerInfoPayload extends FlagHolder<PlayerInfoPayload.FLAGS>
     private record ComponentInfo<T extends PlayerDataComponent>(
         Class<T> componentClass,
         Supplier<T> constructor,
-        byte flag
+        byte flag,
+        // Field mask of a complete delta component, 0 for components that are always sent whole
+        int allFields
     ) {}
 
     private static <T extends PlayerDataComponent> void registerComponent(Class<T> componentClass, Supplier<T> constructor) {
@@ -45,15 +52,24 @@ public class PlayerInfoPayload extends FlagHolder<PlayerInfoPayload.FLAGS>
         if (nextFlagPosition >= MAX_FLAGS) throw new IllegalStateException("Too many components registered (max " + MAX_FLAGS + " for byte flags)");
 
         byte flag = (byte) (1 << nextFlagPosition);
-        ComponentInfo<T> info = new ComponentInfo<>(componentClass, constructor, flag);
+        int allFields = (constructor.get() instanceof DeltaComponent<?> delta) ? delta.getAllFields() : 0;
+        ComponentInfo<T> info = new ComponentInfo<>(componentClass, constructor, flag, allFields);
 
         COMPONENT_REGISTRY.put(componentClass, info);
     }
 
 
+    private static final int RESERVED_FLAGS_MASK = (1 << RESERVED_FLAGS) - 1;
+    public static final int UUID_SIZE = 16;
+
     public final UUID playerId;
     private final PlayerDataComponent[] components = new PlayerDataComponent[MAX_FLAGS];
 
+    // Update sequence set by the player's client, increasing with every update it sends. 0 if unknown.
+    // Merged payloads remember the sequence each component came from, so a delayed update cannot overwrite a newer one
+    private int sequence = 0;
+    private final int[] componentSequences = new int[MAX_FLAGS];
+
     public PlayerInfoPayload(UUID playerId) {
         this.playerId = playerId;
     }
@@ -66,6 +82,39 @@ public class PlayerInfoPayload extends FlagHolder<PlayerInfoPayload.FLAGS>
         read(buf);
     }
 
+    /**
+     * Reads a payload whose player id was sent separately, such as a world snapshot entry.
+     * The player id may be null if it is unknown, the payload is read but must not be used then.
+     */
+    public PlayerInfoPayload(@Nullable UUID playerId, RegistryByteBuf buf) {
+        this.playerId = playerId;
+        readComponents(buf, buf.readerIndex());
+    }
+
+    /**
+     * Turns a received position into absolute coordinates, storing it if it is a keyframe. Keyframes and the deltas
+     * to them must be resolved in the order they were sent, so this runs on the inbound lane of the player's updates.
+     * A delta to a keyframe this client has not received leaves the payload without a position.
+     */
+    public void resolvePosition() {
+        // A new connection restarts the player's keyframe ids, a delta must not resolve against a keyframe of the last one
+        if (hasFlag(FLAGS.NEW_CONNECTION) && playerId != null) PlayerPositionData.forgetKeyframe(playerId);
+
+        byte flag = COMPONENT_REGISTRY.get(PlayerPositionData.class).flag;
+        int index = getComponentIndex(flag);
+
+        if (components[index] instanceof PlayerPositionData position && !position.resolve(playerId)) {
+            components[index] = null;
+            this.flags &= ~flag;
+        }
+    }
+
+    /** Replaces the item stacks of the components holding any, e.g. placeholders for stacks fetched after decoding */
+    public void replaceStacks(UnaryOperator<ItemStack> replacement) {
+        PlayerEquipmentData equipment = getComponent(PlayerEquipmentData.class);
+        if (equipment != null) equipment.replaceStacks(replacement);
+    }
+
     public void applyToPlayer(PlayerEntity player) {
         for (PlayerDataComponent component : components) {
             if (component != null) component.applyToPlayer(player);
@@ -78,6 +127,9 @@ public class PlayerInfoPayload extends FlagHolder<PlayerInfoPayload.FLAGS>
     @Override
     public P2PMessageType getMessageType() { return P2PMessageType.PLAYER_INFO; }
 
+    @Override
+    public NetworkProtocol getPreferredProtocol() { return NetworkProtocol.RELIABLE_UDP; }
+
     @SuppressWarnings("unchecked")
     private <T extends PlayerDataComponent> ComponentInfo<T> getComponentInfo(Class<T> componentClass) {
         ComponentInfo<?> info = COMPONENT_REGISTRY.get(componentClass);
@@ -93,6 +145,16 @@ public class PlayerInfoPayload extends FlagHolder<PlayerInfoPayload.FLAGS>
 
     private int getComponentIndex(byte flag) { return Integer.numberOfTrailingZeros(flag & 0xFF); }
 
+    /** Number of registered components, the registry index of a component is its position in the encoded payload */
+    public static int getRegistrySize() { return COMPONENT_REGISTRY.size(); }
+
+    public static int getRegistryIndex(Class<? extends PlayerDataComponent> componentClass) {
+        ComponentInfo<?> info = COMPONENT_REGISTRY.get(componentClass);
+        if (info == null) throw new IllegalArgumentException("Unknown component class: " + componentClass);
+
+        return Integer.numberOfTrailingZeros(info.flag & 0xFF) - RESERVED_FLAGS;
+    }
+
     @Nullable
     public <T extends PlayerDataComponent> T getComponent(Class<T> componentClass) {
         byte flag = getComponentInfo(componentClass).flag;
@@ -138,18 +200,216 @@ public class PlayerInfoPayload extends FlagHolder<PlayerInfoPayload.FLAGS>
         return (worldData != null) ? worldData.dimension : null;
     }
 
-    public void merge(PlayerInfoPayload other) {
-        byte reservedMask = (byte) ((1 << RESERVED_FLAGS) - 1);
+    /**
+     * Returns the player id of an encoded payload that only carries position data, or null for any other update.
+     * Lets the host recognize position updates without decoding them.
+     */
+    @Nullable
+    public static UUID peekPositionUpdate(ByteBuffer payload) {
+        if (payload.remaining() < UUID_SIZE + 1) return null;
+
+        int start = payload.position();
+        int flags = payload.get(start + UUID_SIZE) & 0xFF;
+        int positionFlag = COMPONENT_REGISTRY.get(PlayerPositionData.class).flag & 0xFF;
+
+        if ((flags & ~RESERVED_FLAGS_MASK) != positionFlag
+            || (flags & (1 << FLAGS.NEW_CONNECTION.ordinal())) != 0) return null;
+
+        return new UUID(payload.getLong(start), payload.getLong(start + 8));
+    }
+
+    /**
+     * Byte ranges of the components in an encoded payload, so the host can forward it without some of them
+     * by copying the bytes of the others instead of re-encoding the payload.
+     */
+    public static class EncodedLayout {
+        private final int flags;
+        private final int headerEnd;
+        private final int[] starts = new int[MAX_FLAGS];
+        private final int[] ends = new int[MAX_FLAGS];
+        private int partialComponents = 0;
+
+        private EncodedLayout(int flags, int headerEnd) {
+            this.flags = flags;
+            this.headerEnd = headerEnd;
+        }
+
+        public boolean hasComponent(int registryIndex) { return (flags & (1 << (registryIndex + RESERVED_FLAGS))) != 0; }
+
+        /** Returns true if the component only carries some of its fields */
+        public boolean isPartial(int registryIndex) { return (partialComponents & (1 << (registryIndex + RESERVED_FLAGS))) != 0; }
+
+        /** Copies the payload without the components in the mask of registry indices */
+        public byte[] without(ByteBuffer payload, int removedComponents) {
+            int removedFlags = removedComponents << RESERVED_FLAGS;
+            int start = payload.position();
+
+            ByteBuffer out = ByteBuffer.allocate(payload.remaining());
+            out.put(payload.duplicate().limit(start + UUID_SIZE));
+            out.put((byte) (flags & ~removedFlags));
+            out.put(payload.duplicate().position(start + UUID_SIZE + 1).limit(start + headerEnd));
+
+            for (int i = 0; i < MAX_FLAGS; i++) {
+                int flag = 1 << i;
+                if ((flags & flag) == 0 || (removedFlags & flag) != 0) continue;
+
+                out.put(payload.duplicate().position(start + starts[i]).limit(start + ends[i]));
+            }
+
+            byte[] bytes = new byte[out.position()];
+            out.flip().get(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Finds the components of an encoded payload from their length prefixes without decoding them, or returns null
+     * for a payload that must be forwarded as a whole, such as a new connection.
+     */
+    @Nullable
+    public static EncodedLayout scanEncoded(RegistryByteBuf buf) {
+        int start = buf.readerIndex();
+        buf.skipBytes(UUID_SIZE);
+
+        int flags = buf.readUnsignedByte();
+        if ((flags & (1 << FLAGS.NEW_CONNECTION.ordinal())) != 0) return null;
+        buf.readVarInt();
+
+        EncodedLayout layout = new EncodedLayout(flags, buf.readerIndex() - start);
+        for (ComponentInfo<?> info : COMPONENT_REGISTRY.values()) {
+            if ((flags & info.flag) == 0) continue;
+
+            int index = Integer.numberOfTrailingZeros(info.flag & 0xFF);
+            layout.starts[index] = buf.readerIndex() - start;
 
-        // Clear reserved flags and replace with other's
-        this.flags = (byte) ((this.flags & ~reservedMask) | (other.flags & reservedMask));
+            int length = buf.readVarInt();
+            int componentStart = buf.readerIndex();
 
-        // Combine component flags
-        this.flags |= (other.flags & ~reservedMask);
+            // A delta component starts with its field mask
+            if (info.allFields != 0 && (buf.readVarInt() & info.allFields) != info.allFields) layout.partialComponents |= info.flag;
 
+            buf.readerIndex(componentStart + length);
+            layout.ends[index] = buf.readerIndex() - start;
+        }
+        return layout;
+    }
+
+    /**
+     * Returns a payload with only one component of this one, carrying the sequence it was merged from,
+     * or null if this payload does not have it
+     */
+    @Nullable
+    public PlayerInfoPayload extractComponent(int registryIndex) {
+        int index = registryIndex + RESERVED_FLAGS;
+        if (components[index] == null) return null;
+
+        PlayerInfoPayload extracted = new PlayerInfoPayload(playerId);
+        extracted.components[index] = components[index].copy();
+        extracted.flags = (flags & RESERVED_FLAGS_MASK) | (1 << index);
+        extracted.sequence = getComponentSequence(index);
+        return extracted;
+    }
+
+    /** Adds copies of the components this payload lacks from another one, except the excluded registry indices */
+    public PlayerInfoPayload fillMissingFrom(PlayerInfoPayload other, int excludedComponents) {
+        for (int i = RESERVED_FLAGS; i < MAX_FLAGS; i++) {
+            if (components[i] != null || other.components[i] == null || (excludedComponents & (1 << (i - RESERVED_FLAGS))) != 0) continue;
+
+            components[i] = other.components[i].copy();
+            flags |= (1 << i);
+        }
+        return this;
+    }
+
+    public int getSequence() { return sequence; }
+    public PlayerInfoPayload setSequence(int sequence) {
+        this.sequence = sequence;
+        return this;
+    }
+
+    private int getComponentSequence(int index) {
+        return (componentSequences[index] != 0) ? componentSequences[index] : sequence;
+    }
+
+    /** Returns true if an update with the given sequence is older than the current one, unknown sequences are never stale */
+    private static boolean isStale(int update, int current) { return update != 0 && current != 0 && update - current < 0; }
+
+    /**
+     * Merges a newer update into this payload. Components older than the stored ones are skipped.
+     * @return the number of skipped components
+     */
+    public int merge(PlayerInfoPayload other) {
+        // A new connection restarts the player's sequence, so nothing it carries is stale
+        boolean restarted = other.hasFlag(FLAGS.NEW_CONNECTION);
+        if (restarted) Arrays.fill(componentSequences, 0);
+
+        if (restarted || !isStale(other.sequence, this.sequence)) {
+            // Clear reserved flags and replace with other's
+            this.flags = (byte) ((this.flags & ~RESERVED_FLAGS_MASK) | (other.flags & RESERVED_FLAGS_MASK));
+            if (restarted || other.sequence != 0) this.sequence = other.sequence;
+        }
+
+        int staleComponents = 0;
         for (int i = 0; i < MAX_FLAGS; i++) {
-            if (other.components[i] != null) {
-                this.components[i] = other.components[i].copy();
+            if (other.components[i] == null) continue;
+
+            int updateSequence = other.getComponentSequence(i);
+            if (this.components[i] != null && isStale(updateSequence, getComponentSequence(i))) {
+                staleComponents++;
+                continue;
+            }
+
+            PlayerDataComponent previous = this.components[i];
+            this.components[i] = mergeComponent(previous, other.components[i]);
+            if (this.components[i] instanceof PlayerPositionData position && previous instanceof PlayerPositionData shown) {
+                position.smoothFrom(shown, System.currentTimeMillis());
+            }
+            this.componentSequences[i] = updateSequence;
+            this.flags |= (1 << i);
+        }
+        return staleComponents;
+    }
+
+    /**
+     * Removes the partial components that cannot apply to the given state because it does not have them yet,
+     * the fields they do not carry would read as zero. The sender's next full state fills those components in.
+     * @return the number of removed components
+     */
+    public int removePartialsWithoutBase(PlayerInfoPayload state) {
+        int removed = 0;
+        for (int i = RESERVED_FLAGS; i < MAX_FLAGS; i++) {
+            if (state.components[i] != null || !(components[i] instanceof DeltaComponent<?> delta) || !delta.isPartial()) continue;
+
+            components[i] = null;
+            flags &= ~(1 << i);
+            removed++;
+        }
+        return removed;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static PlayerDataComponent mergeComponent(@Nullable PlayerDataComponent current, PlayerDataComponent update) {
+        // A partial update only replaces the fields it carries
+        if (current != null && update instanceof DeltaComponent delta && delta.isPartial() && current.getClass() == update.getClass()) {
+            DeltaComponent merged = (DeltaComponent) current.copy();
+            merged.applyDelta(delta);
+            return merged;
+        }
+
+        return update.copy();
+    }
+
+    /**
+     * Limits the components that support it to the fields that differ from the baseline,
+     * which must be the state the receivers were sent last.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void encodeAsDelta(PlayerInfoPayload baseline) {
+        for (int i = 0; i < MAX_FLAGS; i++) {
+            PlayerDataComponent base = baseline.components[i];
+
+            if (components[i] instanceof DeltaComponent delta && base != null && base.getClass() == delta.getClass()) {
+                delta.setDeltaBaseline((DeltaComponent) base);
             }
         }
     }
@@ -157,22 +417,45 @@ public class PlayerInfoPayload extends FlagHolder<PlayerInfoPayload.FLAGS>
     @Override
     public void write(RegistryByteBuf buf) {
         buf.writeUuid(playerId);
+        writeComponents(buf);
+    }
+
+    /** Writes the payload without its player id */
+    public void writeComponents(RegistryByteBuf buf) {
         writeFlags(buf, 1);
+        buf.writeVarInt(sequence);
 
         for (ComponentInfo<?> info : COMPONENT_REGISTRY.values()) {
             if ((flags & info.flag) != 0) {
                 int index = getComponentIndex(info.flag);
                 PlayerDataComponent component = components[index];
-                if (component != null) component.write(buf);
+                if (component != null) writeComponent(buf, component);
             }
         }
     }
 
+    /** Writes the component behind its length, so the host can find components without decoding them */
+    private static void writeComponent(RegistryByteBuf buf, PlayerDataComponent component) {
+        RegistryByteBuf encoded = new RegistryByteBuf(Unpooled.buffer(), buf.getRegistryManager());
+        try {
+            component.write(encoded);
+            buf.writeVarInt(encoded.readableBytes());
+            buf.writeBytes(encoded);
+        } finally {
+            encoded.release();
+        }
+    }
+
     public void read(RegistryByteBuf buf) {
         int beforePayload = buf.readerIndex();
 
         buf.readUuid(); // playerId already read in constructor
+        readComponents(buf, beforePayload);
+    }
+
+    private void readComponents(RegistryByteBuf buf, int beforePayload) {
         readFlags(buf, 1);
+        this.sequence = buf.readVarInt();
 
         StringBuilder componentLog = PlayerRelay.isDevelopment ? new StringBuilder() : null;
 
@@ -180,11 +463,14 @@ public class PlayerInfoPayload extends FlagHolder<PlayerInfoPayload.FLAGS>
             if ((flags & info.flag) != 0) {
                 int beforeComponent = componentLog != null ? buf.readerIndex() : 0;
 
+                int length = buf.readVarInt();
+                int componentEnd = buf.readerIndex() + length;
+
                 PlayerDataComponent component = info.constructor.get();
                 component.read(buf);
+                buf.readerIndex(componentEnd);
 
-                int index = getComponentIndex(info.flag);
-                components[index] = component;
+                components[getComponentIndex(info.flag)] = component;
 
                 if (componentLog != null) {
                     int bytesRead = buf.readerIndex() - beforeComponent;
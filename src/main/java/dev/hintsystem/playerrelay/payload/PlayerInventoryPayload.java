@@ -1,6 +1,7 @@
 package dev.hintsystem.playerrelay.payload;
 
 import dev.hintsystem.playerrelay.EnderChestTracker;
+import dev.hintsystem.playerrelay.networking.NetworkProtocol;
 import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
 
 import net.minecraft.entity.player.PlayerEntity;
@@ -8,17 +9,37 @@ import net.minecraft.entity.player.PlayerInventory;
 import net.minecraft.item.ItemStack;
 import net.minecraft.network.RegistryByteBuf;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-
+import java.util.function.UnaryOperator;
+
+/**
+ * Inventory or ender chest contents of a player, either requested once or kept up to date by a subscription.
+ * <p>
+ * A subscribed request carries the subscriber's id and is renewed periodically, a renewal does not ask for new contents.
+ * The owner answers a subscription with a full snapshot and then sends only the changed slots as {@link FLAGS#IS_DIFF}
+ * responses. Every snapshot and diff has a revision, a diff applies only to the revision right before it.
+ * Snapshots always carry their item stacks in full, diffs may refer to stacks by their {@link ItemStackCache} hash.
+ */
 public class PlayerInventoryPayload extends FlagHolder<PlayerInventoryPayload.FLAGS>
     implements IPayload {
-    public enum FLAGS { IS_REQUEST, IS_ENDER_CHEST, PLAYER_HAS_DATA }
+    public enum FLAGS { IS_REQUEST, IS_ENDER_CHEST, PLAYER_HAS_DATA, SUBSCRIBE, RENEWAL, UNSUBSCRIBE, IS_DIFF }
 
     public final UUID playerId;
     public List<ItemStack> inventoryItems = new ArrayList<>();
 
+    /** Player subscribing or unsubscribing, only set on subscription requests */
+    @Nullable
+    public UUID subscriberId;
+    public int revision = 0;
+    /** Changed slots of a diff response */
+    public Map<Integer, ItemStack> changedSlots = new LinkedHashMap<>();
+
     public PlayerInventoryPayload(UUID playerId) {
         this.playerId = playerId;
     }
@@ -52,31 +73,103 @@ public class PlayerInventoryPayload extends FlagHolder<PlayerInventoryPayload.FL
     }
     public static PlayerInventoryPayload respond(PlayerEntity player, boolean isEnderChest) { return new PlayerInventoryPayload(player, isEnderChest); }
 
+    /** Starts a subscription, or only keeps it alive if it is a renewal */
+    public static PlayerInventoryPayload subscribe(UUID playerId, boolean isEnderChest, UUID subscriberId, boolean renewal) {
+        PlayerInventoryPayload payload = request(playerId, isEnderChest);
+        payload.setFlag(FLAGS.SUBSCRIBE, true);
+        payload.setFlag(FLAGS.RENEWAL, renewal);
+        payload.subscriberId = subscriberId;
+        return payload;
+    }
+
+    public static PlayerInventoryPayload unsubscribe(UUID playerId, boolean isEnderChest, UUID subscriberId) {
+        PlayerInventoryPayload payload = request(playerId, isEnderChest);
+        payload.setFlag(FLAGS.UNSUBSCRIBE, true);
+        payload.subscriberId = subscriberId;
+        return payload;
+    }
+
+    public static PlayerInventoryPayload diff(UUID playerId, boolean isEnderChest, int revision, Map<Integer, ItemStack> changedSlots) {
+        PlayerInventoryPayload payload = new PlayerInventoryPayload(playerId);
+        payload.setFlag(FLAGS.IS_ENDER_CHEST, isEnderChest);
+        payload.setFlag(FLAGS.PLAYER_HAS_DATA, true);
+        payload.setFlag(FLAGS.IS_DIFF, true);
+        payload.revision = revision;
+        payload.changedSlots = changedSlots;
+        return payload;
+    }
+
     public PlayerInventoryPayload(RegistryByteBuf buf) {
         this.playerId = buf.readUuid();
         readFlags(buf, 1);
 
-        if (isResponse() && hasData()) {
-            this.inventoryItems = ItemStack.OPTIONAL_LIST_PACKET_CODEC.decode(buf);
+        if (isSubscription()) {
+            this.subscriberId = buf.readUuid();
+        } else if (isResponse() && hasData()) {
+            this.revision = buf.readVarInt();
+
+            if (isDiff()) {
+                int count = buf.readVarInt();
+                for (int i = 0; i < count; i++) {
+                    int slot = buf.readVarInt();
+                    changedSlots.put(slot, ItemStackCache.read(buf));
+                }
+            } else {
+                this.inventoryItems = ItemStackCache.readList(buf);
+            }
         }
     }
 
+    /** Replaces every stack, e.g. placeholders for stacks that were fetched after decoding */
+    public void replaceStacks(UnaryOperator<ItemStack> replacement) {
+        inventoryItems.replaceAll(replacement);
+        changedSlots.replaceAll((slot, stack) -> replacement.apply(stack));
+    }
+
     public boolean isRequest() { return hasFlag(FLAGS.IS_REQUEST); }
     public boolean isResponse() { return !hasFlag(FLAGS.IS_REQUEST); }
 
     public boolean hasData() { return hasFlag(FLAGS.PLAYER_HAS_DATA); }
     public boolean isEnderChest() { return hasFlag(FLAGS.IS_ENDER_CHEST); }
 
+    public boolean isSubscription() { return hasFlag(FLAGS.SUBSCRIBE) || hasFlag(FLAGS.UNSUBSCRIBE); }
+    public boolean isRenewal() { return hasFlag(FLAGS.RENEWAL); }
+    public boolean isUnsubscribe() { return hasFlag(FLAGS.UNSUBSCRIBE); }
+    public boolean isDiff() { return hasFlag(FLAGS.IS_DIFF); }
+
+    public String getMissingDataMessage() {
+        return isEnderChest()
+            ? "Ender chest data unavailable - player must open their ender chest at least once before it can be tracked"
+            : "Player inventory data unavailable";
+    }
+
     @Override
     public P2PMessageType getMessageType() { return P2PMessageType.PLAYER_INVENTORY; }
 
+    @Override
+    public NetworkProtocol getPreferredProtocol() { return NetworkProtocol.RELIABLE_UDP; }
+
     @Override
     public void write(RegistryByteBuf buf) {
         buf.writeUuid(this.playerId);
         writeFlags(buf, 1);
 
-        if (isResponse() && hasData()) {
-            ItemStack.OPTIONAL_LIST_PACKET_CODEC.encode(buf, inventoryItems);
+        if (isSubscription()) {
+            buf.writeUuid(this.subscriberId);
+        } else if (isResponse() && hasData()) {
+            buf.writeVarInt(this.revision);
+
+            if (isDiff()) {
+                buf.writeVarInt(changedSlots.size());
+                for (Map.Entry<Integer, ItemStack> slot : changedSlots.entrySet()) {
+                    buf.writeVarInt(slot.getKey());
+                    ItemStackCache.write(buf, slot.getValue());
+                }
+            } else {
+                // Snapshots answer requests and resyncs, receivers that joined since a stack was last sent in full never got it
+                buf.writeVarInt(inventoryItems.size());
+                for (ItemStack stack : inventoryItems) ItemStackCache.writeFull(buf, stack);
+            }
         }
     }
 }
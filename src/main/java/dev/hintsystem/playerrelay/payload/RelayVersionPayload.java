@@ -6,16 +6,24 @@ import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
 import net.minecraft.network.RegistryByteBuf;
 
 public class RelayVersionPayload implements IPayload {
+    /** The peer can read messages compressed with {@link dev.hintsystem.playerrelay.networking.message.MessageCompression} */
+    public static final int CAPABILITY_COMPRESSION = 1;
+
     public int networkVersion = PlayerRelay.NETWORK_VERSION;
     public String modVersion = PlayerRelay.VERSION;
+    /** Optional features the peer supports, peers without the field support none */
+    public int capabilities = CAPABILITY_COMPRESSION;
 
     public RelayVersionPayload() {}
 
     public RelayVersionPayload(RegistryByteBuf buf) {
         this.networkVersion = buf.readInt();
         this.modVersion = buf.readString();
+        this.capabilities = buf.isReadable(Integer.BYTES) ? buf.readInt() : 0;
     }
 
+    public boolean hasCapability(int capability) { return (capabilities & capability) != 0; }
+
     @Override
     public P2PMessageType getMessageType() { return P2PMessageType.RELAY_VERSION; }
 
@@ -23,5 +31,6 @@ public class RelayVersionPayload implements IPayload {
     public void write(RegistryByteBuf buf) {
         buf.writeInt(networkVersion);
         buf.writeString(modVersion);
+        buf.writeInt(capabilities);
     }
 }
@@ -9,22 +9,47 @@ public class UdpPingPayload implements IPayload {
     private final boolean isResponse;
     private final long timestamp;
     private final int sequenceNumber;
+    /** Datagram size of a path MTU probe, which is padded to that size, 0 for health check pings */
+    private final int probeSize;
+    private final int paddingLength;
+
+    /** Encoded size of a ping without padding */
+    public static final int BASE_SIZE = 15;
 
     public UdpPingPayload(long timestamp, int sequenceNumber, boolean isResponse) {
+        this(timestamp, sequenceNumber, isResponse, 0, 0);
+    }
+
+    private UdpPingPayload(long timestamp, int sequenceNumber, boolean isResponse, int probeSize, int paddingLength) {
         this.isResponse = isResponse;
         this.timestamp = timestamp;
         this.sequenceNumber = sequenceNumber;
+        this.probeSize = probeSize;
+        this.paddingLength = paddingLength;
     }
 
     public UdpPingPayload(RegistryByteBuf buf) {
         this.isResponse = buf.readBoolean();
         this.timestamp = buf.readLong();
         this.sequenceNumber = buf.readInt();
+        this.probeSize = buf.readUnsignedShort();
+        this.paddingLength = 0; // Padding is never read
+    }
+
+    /** Creates a path MTU probe padded by the given number of bytes, so its datagram is probeSize bytes long */
+    public static UdpPingPayload probe(long timestamp, int sequenceNumber, int probeSize, int paddingLength) {
+        return new UdpPingPayload(timestamp, sequenceNumber, false, probeSize, paddingLength);
+    }
+
+    /** Creates the unpadded response to this ping */
+    public UdpPingPayload response() {
+        return new UdpPingPayload(timestamp, sequenceNumber, true, probeSize, 0);
     }
 
     @Override
     public P2PMessageType getMessageType() { return P2PMessageType.UDP_PING; }
 
+    /** Responses go over TCP, a retransmitted response would report a lost ping as answered and skew the round trip time */
     @Override
     public NetworkProtocol getPreferredProtocol() { return isResponse ? NetworkProtocol.TCP : NetworkProtocol.UDP; }
 
@@ -33,9 +58,13 @@ public class UdpPingPayload implements IPayload {
         buf.writeBoolean(isResponse);
         buf.writeLong(timestamp);
         buf.writeInt(sequenceNumber);
+        buf.writeShort(probeSize);
+        buf.writeZero(paddingLength);
     }
 
     public boolean isResponse() { return isResponse; }
     public long getTimestamp() { return timestamp; }
     public int getSequenceNumber() { return sequenceNumber; }
+    public boolean isProbe() { return probeSize > 0; }
+    public int getProbeSize() { return probeSize; }
 }
@@ -0,0 +1,35 @@
+package dev.hintsystem.playerrelay.payload;
+
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+
+import net.minecraft.network.RegistryByteBuf;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/** Tells the host which relay players this peer currently sees as entities through the game server */
+public class VisiblePlayersPayload implements IPayload {
+    public final Set<UUID> playerIds;
+
+    public VisiblePlayersPayload(Set<UUID> playerIds) {
+        this.playerIds = playerIds;
+    }
+
+    public VisiblePlayersPayload(RegistryByteBuf buf) {
+        int count = buf.readVarInt();
+        Set<UUID> ids = new HashSet<>(count);
+
+        for (int i = 0; i < count; i++) ids.add(buf.readUuid());
+        this.playerIds = Set.copyOf(ids);
+    }
+
+    @Override
+    public P2PMessageType getMessageType() { return P2PMessageType.VISIBLE_PLAYERS; }
+
+    @Override
+    public void write(RegistryByteBuf buf) {
+        buf.writeVarInt(playerIds.size());
+        for (UUID playerId : playerIds) buf.writeUuid(playerId);
+    }
+}
@@ -0,0 +1,59 @@
+package dev.hintsystem.playerrelay.payload;
+
+import dev.hintsystem.playerrelay.networking.NetworkProtocol;
+import dev.hintsystem.playerrelay.networking.message.P2PMessageType;
+
+import net.minecraft.network.RegistryByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Position updates of several players, sent by the host once per snapshot interval instead of forwarding
+ * every player's updates to every peer. Each entry is the player's index, see {@link PlayerIndexPayload},
+ * followed by an encoded {@link PlayerInfoPayload} without its player id.
+ */
+public class WorldSnapshotPayload implements IPayload {
+    public static final int COUNT_SIZE = 2;
+
+    public record Entry(int playerIndex, PlayerInfoPayload player) {}
+
+    public final List<Entry> entries;
+
+    public WorldSnapshotPayload(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /** Reads a snapshot, leaving out players whose index is not known yet */
+    public WorldSnapshotPayload(RegistryByteBuf buf, Map<Integer, UUID> playerIndices) {
+        int count = buf.readUnsignedShort();
+        this.entries = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            int playerIndex = buf.readVarInt();
+            UUID playerId = playerIndices.get(playerIndex);
+
+            // Entries are not length-prefixed, so unknown players still have to be read
+            PlayerInfoPayload player = new PlayerInfoPayload(playerId, buf);
+            if (playerId != null) entries.add(new Entry(playerIndex, player));
+        }
+    }
+
+    @Override
+    public P2PMessageType getMessageType() { return P2PMessageType.WORLD_SNAPSHOT; }
+
+    @Override
+    public NetworkProtocol getPreferredProtocol() { return NetworkProtocol.UDP; }
+
+    @Override
+    public void write(RegistryByteBuf buf) {
+        buf.writeShort(entries.size());
+
+        for (Entry entry : entries) {
+            buf.writeVarInt(entry.playerIndex());
+            entry.player().writeComponents(buf);
+        }
+    }
+}
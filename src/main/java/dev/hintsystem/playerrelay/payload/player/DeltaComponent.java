@@ -0,0 +1,50 @@
+package dev.hintsystem.playerrelay.payload.player;
+
+import net.minecraft.network.RegistryByteBuf;
+
+/**
+ * A component that can be sent as only the fields that changed since the last update instead of whole.
+ * <p>
+ * The encoding is a field mask followed by the fields in it. A component read with only some fields is
+ * partial, {@link dev.hintsystem.playerrelay.payload.PlayerInfoPayload#merge} applies it on top of the
+ * stored component. The baseline is the sender's previous update, which receivers always have because
+ * these components are sent reliably and in order. Senders periodically send all fields so peers that joined later
+ * converge.
+ */
+public interface DeltaComponent<T extends DeltaComponent<T>> extends PlayerDataComponent {
+    int getFieldCount();
+
+    int getPresentFields();
+    void setPresentFields(int fieldMask);
+
+    /** Returns a bit for every field that differs from the baseline */
+    int getChangedFields(T baseline);
+
+    void writeFields(RegistryByteBuf buf, int fieldMask);
+    void readFields(RegistryByteBuf buf, int fieldMask);
+    void copyFields(T source, int fieldMask);
+
+    default int getAllFields() { return (1 << getFieldCount()) - 1; }
+    default boolean isPartial() { return getPresentFields() != getAllFields(); }
+
+    /** Limits the next write to the fields that differ from the baseline */
+    default void setDeltaBaseline(T baseline) { setPresentFields(getChangedFields(baseline)); }
+
+    default void writeDelta(RegistryByteBuf buf) {
+        int fieldMask = getPresentFields();
+        buf.writeVarInt(fieldMask);
+        writeFields(buf, fieldMask);
+    }
+
+    default void readDelta(RegistryByteBuf buf) {
+        int fieldMask = buf.readVarInt() & getAllFields();
+        setPresentFields(fieldMask);
+        readFields(buf, fieldMask);
+    }
+
+    /** Copies the fields present in the delta into this component */
+    default void applyDelta(T delta) {
+        copyFields(delta, delta.getPresentFields());
+        setPresentFields(getPresentFields() | delta.getPresentFields());
+    }
+}
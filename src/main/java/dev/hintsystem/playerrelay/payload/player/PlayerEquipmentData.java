@@ -1,5 +1,7 @@
 package dev.hintsystem.playerrelay.payload.player;
 
+import dev.hintsystem.playerrelay.payload.ItemStackCache;
+
 import net.minecraft.entity.EquipmentSlot;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.item.ItemStack;
@@ -9,8 +11,9 @@ import net.minecraft.util.collection.DefaultedList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
 
-public class PlayerEquipmentData implements PlayerDataComponent {
+public class PlayerEquipmentData implements DeltaComponent<PlayerEquipmentData> {
     public static final EquipmentSlot[] EQUIPMENT_SLOT_ORDER = new EquipmentSlot[] {
         EquipmentSlot.MAINHAND,
         EquipmentSlot.OFFHAND,
@@ -29,6 +32,9 @@ public class PlayerEquipmentData implements PlayerDataComponent {
 
     public final DefaultedList<ItemStack> equipment = DefaultedList.ofSize(EQUIPMENT_SLOT_ORDER.length, ItemStack.EMPTY);
 
+    // Every slot is a field of its own, so changing the held item only sends that stack
+    private int presentFields = (1 << EQUIPMENT_SLOT_ORDER.length) - 1;
+
     public PlayerEquipmentData() {}
 
     public PlayerEquipmentData(PlayerEntity player) {
@@ -58,31 +64,57 @@ public class PlayerEquipmentData implements PlayerDataComponent {
     }
 
     @Override
-    public void write(RegistryByteBuf buf) {
+    public int getFieldCount() { return EQUIPMENT_SLOT_ORDER.length; }
+    @Override
+    public int getPresentFields() { return presentFields; }
+    @Override
+    public void setPresentFields(int fieldMask) { this.presentFields = fieldMask; }
+
+    @Override
+    public int getChangedFields(PlayerEquipmentData baseline) {
+        int changed = 0;
         for (int i = 0; i < EQUIPMENT_SLOT_ORDER.length; i++) {
-            ItemStack.OPTIONAL_PACKET_CODEC.encode(buf, equipment.get(i));
+            if (!ItemStack.areEqual(this.equipment.get(i), baseline.equipment.get(i))) changed |= 1 << i;
         }
+        return changed;
     }
 
     @Override
-    public void read(RegistryByteBuf buf) {
+    public void write(RegistryByteBuf buf) { writeDelta(buf); }
+
+    @Override
+    public void read(RegistryByteBuf buf) { readDelta(buf); }
+
+    @Override
+    public void writeFields(RegistryByteBuf buf, int fieldMask) {
         for (int i = 0; i < EQUIPMENT_SLOT_ORDER.length; i++) {
-            ItemStack stack = ItemStack.OPTIONAL_PACKET_CODEC.decode(buf);
-            this.equipment.set(i, stack);
+            if ((fieldMask & (1 << i)) != 0) ItemStackCache.write(buf, equipment.get(i));
         }
     }
 
     @Override
-    public boolean hasChanged(PlayerDataComponent other) {
-        if (!(other instanceof PlayerEquipmentData otherEquipment)) return true;
+    public void readFields(RegistryByteBuf buf, int fieldMask) {
+        for (int i = 0; i < EQUIPMENT_SLOT_ORDER.length; i++) {
+            if ((fieldMask & (1 << i)) != 0) this.equipment.set(i, ItemStackCache.read(buf));
+        }
+    }
+
+    /** Replaces every stack, e.g. placeholders for stacks that were fetched after decoding */
+    public void replaceStacks(UnaryOperator<ItemStack> replacement) {
+        for (int i = 0; i < equipment.size(); i++) equipment.set(i, replacement.apply(equipment.get(i)));
+    }
 
+    @Override
+    public void copyFields(PlayerEquipmentData source, int fieldMask) {
         for (int i = 0; i < EQUIPMENT_SLOT_ORDER.length; i++) {
-            if (!ItemStack.areEqual(this.equipment.get(i), otherEquipment.equipment.get(i))) {
-                return true;
-            }
+            if ((fieldMask & (1 << i)) != 0) this.equipment.set(i, source.equipment.get(i).copy());
         }
+    }
 
-        return false;
+    @Override
+    public boolean hasChanged(PlayerDataComponent other) {
+        if (!(other instanceof PlayerEquipmentData otherEquipment)) return true;
+        return getChangedFields(otherEquipment) != 0;
     }
 
     @Override
@@ -91,6 +123,7 @@ public class PlayerEquipmentData implements PlayerDataComponent {
         for (int i = 0; i < this.equipment.size(); i++) {
             copy.equipment.set(i, this.equipment.get(i).copy());
         }
+        copy.presentFields = this.presentFields;
         return copy;
     }
 }
@@ -2,49 +2,235 @@ package dev.hintsystem.playerrelay.payload.player;
 
 import dev.hintsystem.playerrelay.PlayerRelay;
 
-import net.minecraft.client.network.ClientPlayerEntity;
 import net.minecraft.entity.EntityPose;
+import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.Vec3d;
 
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Position, rotation and pose of a player, encoded compactly since it is by far the most frequent update.
+ * <p>
+ * Coordinates are fixed-point with {@link #COORD_SCALE} steps per block. They are sent either absolute or as
+ * a delta to a keyframe, a position the sender sent reliably earlier. Receivers keep the latest
+ * keyframe of every player and drop deltas against a keyframe they do not have. Yaw, pitch and pose are
+ * packed into 3 bytes. A typical delta takes 8 bytes instead of 21.
+ * <p>
+ * Moving players also send their velocity, with {@link #VELOCITY_SCALE} steps per block per second. Receivers extrapolate
+ * along it for up to {@value #MAX_EXTRAPOLATION_MS} ms, so the sender only sends a new position once that extrapolation is
+ * off by more than {@link dev.hintsystem.playerrelay.config.Config#minPlayerMove}, or at least every
+ * {@value #MOVING_REFRESH_INTERVAL_MS} ms while moving. A new position does not jump, the difference to where the player was
+ * shown fades out over {@value #SMOOTHING_MS} ms.
+ */
 public class PlayerPositionData implements PlayerDataComponent {
+    public static final int COORD_SCALE = 16;
+    /** Largest coordinate delta, in fixed-point steps, that still fits a 2-byte VarInt */
+    public static final int MAX_DELTA = 8191;
+    public static final int MAX_KEYFRAME_ID = 127;
+
+    public static final int VELOCITY_SCALE = 16;
+    public static final long MAX_EXTRAPOLATION_MS = 3000;
+    public static final long MOVING_REFRESH_INTERVAL_MS = 2000;
+    public static final long SMOOTHING_MS = 200;
+    /** Corrections larger than this, in blocks, are teleports and are not smoothed */
+    private static final double MAX_SMOOTHED_CORRECTION = 8;
+
+    private static final int DELTA_BIT = 0x80;
+    private static final int YAW_BITS = 10, PITCH_BITS = 9, POSE_BITS = 5;
+
+    /** Latest keyframe received from every player */
+    private static final Map<UUID, Keyframe> receivedKeyframes = new ConcurrentHashMap<>();
+
+    private record Keyframe(int id, int x, int y, int z) {}
+
     public Vec3d coords;
     public float yaw, pitch;
     public EntityPose pose;
+    /** Blocks per second, quantized like it is sent */
+    public Vec3d velocity = Vec3d.ZERO;
+    /** When this position was taken or received, extrapolation starts from here */
+    public long timestamp = System.currentTimeMillis();
+
+    // Difference between where the player was shown and this position when it arrived, faded out while rendering
+    private Vec3d correction = Vec3d.ZERO;
+    private long correctionTime = 0;
+
+    // Encoding state, 0 means no keyframe. Decoded positions are always absolute once resolved
+    private int keyframeId = 0;
+    private boolean isKeyframe = false;
+    @Nullable private int[] deltaBase;
+    @Nullable private int[] receivedCoords;
 
     public PlayerPositionData() {}
 
-    public PlayerPositionData(ClientPlayerEntity player) {
+    public PlayerPositionData(PlayerEntity player) {
         this.coords = player.getPos();
         this.yaw = player.getYaw();
         this.pitch = player.getPitch();
         this.pose = (player.getVehicle() != null) ? EntityPose.SITTING : player.getPose();
     }
 
+    public PlayerPositionData setVelocity(Vec3d velocity) {
+        this.velocity = new Vec3d(quantizeVelocity(velocity.x), quantizeVelocity(velocity.y), quantizeVelocity(velocity.z))
+            .multiply(1.0 / VELOCITY_SCALE);
+        return this;
+    }
+
+    private static int quantizeVelocity(double velocity) { return (int) Math.round(velocity * VELOCITY_SCALE); }
+
+    public boolean isMoving() { return !velocity.equals(Vec3d.ZERO); }
+
+    /** Where the player is expected to be at the given time, moving on at its last velocity */
+    public Vec3d extrapolate(long now) {
+        if (coords == null || !isMoving()) return coords;
+
+        long elapsed = Math.clamp(now - timestamp, 0, MAX_EXTRAPOLATION_MS);
+        return coords.add(velocity.multiply(elapsed / 1000.0));
+    }
+
+    /** Where to show the player at the given time, extrapolated and without jumps on new updates */
+    public Vec3d getSmoothedCoords(long now) {
+        Vec3d extrapolated = extrapolate(now);
+        if (extrapolated == null || correction.equals(Vec3d.ZERO)) return extrapolated;
+
+        double remaining = 1.0 - (double) (now - correctionTime) / SMOOTHING_MS;
+        return (remaining > 0) ? extrapolated.add(correction.multiply(remaining)) : extrapolated;
+    }
+
+    /** Starts fading from where the previous position showed the player to this one */
+    public void smoothFrom(PlayerPositionData previous, long now) {
+        Vec3d shown = previous.getSmoothedCoords(now);
+        Vec3d target = extrapolate(now);
+        if (shown == null || target == null) return;
+
+        Vec3d difference = shown.subtract(target);
+        if (difference.lengthSquared() > MAX_SMOOTHED_CORRECTION * MAX_SMOOTHED_CORRECTION) return;
+
+        this.correction = difference;
+        this.correctionTime = now;
+    }
+
+    /** Encodes this position as keyframe, receivers keep it as base for later deltas */
+    public void setKeyframe(int keyframeId) {
+        this.keyframeId = keyframeId;
+        this.isKeyframe = true;
+        this.deltaBase = null;
+    }
+
+    /** Encodes this position as delta to the given keyframe, or absolute if it moved too far from it */
+    public void setDeltaBase(int keyframeId, int[] keyframeCoords) {
+        this.keyframeId = keyframeId;
+        this.isKeyframe = false;
+        this.deltaBase = keyframeCoords;
+    }
+
+    public int[] getQuantizedCoords() {
+        return new int[] { quantize(coords.x), quantize(coords.y), quantize(coords.z) };
+    }
+
+    public static boolean fitsDelta(int[] coords, int[] base) {
+        for (int i = 0; i < 3; i++) {
+            if (Math.abs(coords[i] - base[i]) > MAX_DELTA) return false;
+        }
+        return true;
+    }
+
+    private static int quantize(double coord) { return (int) Math.round(coord * COORD_SCALE); }
+    private static double dequantize(int coord) { return (double) coord / COORD_SCALE; }
+
+    private static int zigZag(int value) { return (value << 1) ^ (value >> 31); }
+    private static int unZigZag(int value) { return (value >>> 1) ^ -(value & 1); }
+
     @Override
     public void write(RegistryByteBuf buf) {
-        buf.writeFloat((float) coords.x);
-        buf.writeFloat((float) coords.y);
-        buf.writeFloat((float) coords.z);
-        buf.writeFloat(yaw);
-        buf.writeFloat(pitch);
-        buf.writeByte(pose.getIndex());
+        int[] quantized = getQuantizedCoords();
+        boolean delta = !isKeyframe && deltaBase != null && fitsDelta(quantized, deltaBase);
+
+        buf.writeByte((delta ? DELTA_BIT : 0) | ((delta || isKeyframe) ? keyframeId : 0));
+        for (int i = 0; i < 3; i++) {
+            buf.writeVarInt(zigZag(delta ? quantized[i] - deltaBase[i] : quantized[i]));
+        }
+
+        int packedYaw = Math.round((MathHelper.wrapDegrees(yaw) + 180.0F) / 360.0F * (1 << YAW_BITS)) & ((1 << YAW_BITS) - 1);
+        int packedPitch = Math.round((MathHelper.clamp(pitch, -90.0F, 90.0F) + 90.0F) / 180.0F * ((1 << PITCH_BITS) - 1));
+        buf.writeMedium(packedYaw | packedPitch << YAW_BITS | (pose.getIndex() & ((1 << POSE_BITS) - 1)) << (YAW_BITS + PITCH_BITS));
+
+        buf.writeBoolean(isMoving());
+        if (isMoving()) {
+            buf.writeVarInt(zigZag(quantizeVelocity(velocity.x)));
+            buf.writeVarInt(zigZag(quantizeVelocity(velocity.y)));
+            buf.writeVarInt(zigZag(quantizeVelocity(velocity.z)));
+        }
     }
 
     @Override
     public void read(RegistryByteBuf buf) {
-        this.coords = new Vec3d(buf.readFloat(), buf.readFloat(), buf.readFloat());
-        this.yaw = buf.readFloat();
-        this.pitch = buf.readFloat();
-        this.pose = EntityPose.INDEX_TO_VALUE.apply(buf.readUnsignedByte());
+        int header = buf.readUnsignedByte();
+        this.keyframeId = header & MAX_KEYFRAME_ID;
+        this.isKeyframe = (header & DELTA_BIT) == 0 && keyframeId != 0;
+        this.deltaBase = null;
+
+        this.receivedCoords = new int[3];
+        for (int i = 0; i < 3; i++) receivedCoords[i] = unZigZag(buf.readVarInt());
+        if ((header & DELTA_BIT) != 0) this.deltaBase = receivedCoords;
+
+        int packed = buf.readUnsignedMedium();
+        this.yaw = (packed & ((1 << YAW_BITS) - 1)) * 360.0F / (1 << YAW_BITS) - 180.0F;
+        this.pitch = ((packed >> YAW_BITS) & ((1 << PITCH_BITS) - 1)) * 180.0F / ((1 << PITCH_BITS) - 1) - 90.0F;
+        this.pose = EntityPose.INDEX_TO_VALUE.apply(packed >>> (YAW_BITS + PITCH_BITS));
+
+        this.velocity = buf.readBoolean()
+            ? new Vec3d(unZigZag(buf.readVarInt()), unZigZag(buf.readVarInt()), unZigZag(buf.readVarInt())).multiply(1.0 / VELOCITY_SCALE)
+            : Vec3d.ZERO;
+        this.timestamp = System.currentTimeMillis();
     }
 
+    /**
+     * Turns a decoded position into absolute coordinates, storing it if it is a keyframe.
+     * @return false if it is a delta to a keyframe that has not been received, the position is unknown then
+     */
+    public boolean resolve(@Nullable UUID playerId) {
+        if (receivedCoords == null) return true;
+
+        int[] quantized = receivedCoords;
+        if (deltaBase != null) {
+            Keyframe keyframe = (playerId != null) ? receivedKeyframes.get(playerId) : null;
+            if (keyframe == null || keyframe.id() != keyframeId) return false;
+
+            quantized = new int[] { keyframe.x() + quantized[0], keyframe.y() + quantized[1], keyframe.z() + quantized[2] };
+        } else if (isKeyframe && playerId != null) {
+            receivedKeyframes.put(playerId, new Keyframe(keyframeId, quantized[0], quantized[1], quantized[2]));
+        }
+
+        this.coords = new Vec3d(dequantize(quantized[0]), dequantize(quantized[1]), dequantize(quantized[2]));
+
+        // Re-encoding a received position, e.g. for a player joining the host later, sends it as plain absolute
+        this.keyframeId = 0;
+        this.isKeyframe = false;
+        this.deltaBase = null;
+        this.receivedCoords = null;
+        return true;
+    }
+
+    public static void forgetKeyframe(UUID playerId) { receivedKeyframes.remove(playerId); }
+
+    /** Forgets the keyframes of every player, ids from another session would resolve deltas against the wrong base */
+    public static void clearKeyframes() { receivedKeyframes.clear(); }
+
     @Override
     public boolean hasChanged(PlayerDataComponent other) {
         if (!(other instanceof PlayerPositionData otherPos)) return true;
 
+        // Compared to where receivers extrapolate the last sent position to, so steady movement needs no updates
         double minPlayerMove = PlayerRelay.config.minPlayerMove;
-        return this.coords.squaredDistanceTo(otherPos.coords) >= minPlayerMove * minPlayerMove
+        return this.coords.squaredDistanceTo(otherPos.extrapolate(this.timestamp)) >= minPlayerMove * minPlayerMove
+            || (otherPos.isMoving() && this.timestamp - otherPos.timestamp >= MOVING_REFRESH_INTERVAL_MS)
             || Math.abs(this.yaw - otherPos.yaw) > 5.0F
             || Math.abs(this.pitch - otherPos.pitch) > 5.0F
             || !this.pose.equals(otherPos.pose);
@@ -57,6 +243,10 @@ public class PlayerPositionData implements PlayerDataComponent {
         copy.yaw = this.yaw;
         copy.pitch = this.pitch;
         copy.pose = this.pose;
+        copy.velocity = this.velocity;
+        copy.timestamp = this.timestamp;
+        copy.correction = this.correction;
+        copy.correctionTime = this.correctionTime;
         return copy;
     }
 }
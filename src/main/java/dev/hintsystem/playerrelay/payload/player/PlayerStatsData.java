@@ -3,10 +3,15 @@ package dev.hintsystem.playerrelay.payload.player;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.network.RegistryByteBuf;
 
-public class PlayerStatsData implements PlayerDataComponent {
+public class PlayerStatsData implements DeltaComponent<PlayerStatsData> {
+    private static final int HEALTH = 1, ABSORPTION = 1 << 1, XP = 1 << 2, HUNGER = 1 << 3, ARMOR = 1 << 4;
+    private static final int FIELD_COUNT = 5;
+
     public float health, absorptionAmount, xp;
     public short hunger, armor;
 
+    private int presentFields = (1 << FIELD_COUNT) - 1;
+
     public PlayerStatsData() {}
 
     public PlayerStatsData(PlayerEntity player) {
@@ -18,32 +23,60 @@ public class PlayerStatsData implements PlayerDataComponent {
     }
 
     @Override
-    public void write(RegistryByteBuf buf) {
-        buf.writeFloat(health);
-        buf.writeFloat(absorptionAmount);
-        buf.writeFloat(xp);
-        buf.writeShort(hunger);
-        buf.writeShort(armor);
+    public int getFieldCount() { return FIELD_COUNT; }
+    @Override
+    public int getPresentFields() { return presentFields; }
+    @Override
+    public void setPresentFields(int fieldMask) { this.presentFields = fieldMask; }
+
+    @Override
+    public int getChangedFields(PlayerStatsData baseline) {
+        int changed = 0;
+        if (Float.compare(this.health, baseline.health) != 0) changed |= HEALTH;
+        if (Float.compare(this.absorptionAmount, baseline.absorptionAmount) != 0) changed |= ABSORPTION;
+        if (Float.compare(this.xp, baseline.xp) != 0) changed |= XP;
+        if (this.hunger != baseline.hunger) changed |= HUNGER;
+        if (this.armor != baseline.armor) changed |= ARMOR;
+        return changed;
     }
 
     @Override
-    public void read(RegistryByteBuf buf) {
-        this.health = buf.readFloat();
-        this.absorptionAmount = buf.readFloat();
-        this.xp = buf.readFloat();
-        this.hunger = buf.readShort();
-        this.armor = buf.readShort();
+    public void write(RegistryByteBuf buf) { writeDelta(buf); }
+
+    @Override
+    public void read(RegistryByteBuf buf) { readDelta(buf); }
+
+    @Override
+    public void writeFields(RegistryByteBuf buf, int fieldMask) {
+        if ((fieldMask & HEALTH) != 0) buf.writeFloat(health);
+        if ((fieldMask & ABSORPTION) != 0) buf.writeFloat(absorptionAmount);
+        if ((fieldMask & XP) != 0) buf.writeFloat(xp);
+        if ((fieldMask & HUNGER) != 0) buf.writeShort(hunger);
+        if ((fieldMask & ARMOR) != 0) buf.writeShort(armor);
+    }
+
+    @Override
+    public void readFields(RegistryByteBuf buf, int fieldMask) {
+        if ((fieldMask & HEALTH) != 0) this.health = buf.readFloat();
+        if ((fieldMask & ABSORPTION) != 0) this.absorptionAmount = buf.readFloat();
+        if ((fieldMask & XP) != 0) this.xp = buf.readFloat();
+        if ((fieldMask & HUNGER) != 0) this.hunger = buf.readShort();
+        if ((fieldMask & ARMOR) != 0) this.armor = buf.readShort();
+    }
+
+    @Override
+    public void copyFields(PlayerStatsData source, int fieldMask) {
+        if ((fieldMask & HEALTH) != 0) this.health = source.health;
+        if ((fieldMask & ABSORPTION) != 0) this.absorptionAmount = source.absorptionAmount;
+        if ((fieldMask & XP) != 0) this.xp = source.xp;
+        if ((fieldMask & HUNGER) != 0) this.hunger = source.hunger;
+        if ((fieldMask & ARMOR) != 0) this.armor = source.armor;
     }
 
     @Override
     public boolean hasChanged(PlayerDataComponent other) {
         if (!(other instanceof PlayerStatsData otherStats)) return true;
-
-        return Float.compare(this.health, otherStats.health) != 0
-            || Float.compare(this.absorptionAmount, otherStats.absorptionAmount) != 0
-            || Float.compare(this.xp, otherStats.xp) != 0
-            || this.hunger != otherStats.hunger
-            || this.armor != otherStats.armor;
+        return getChangedFields(otherStats) != 0;
     }
 
     @Override
@@ -54,6 +87,7 @@ public class PlayerStatsData implements PlayerDataComponent {
         copy.xp = this.xp;
         copy.hunger = this.hunger;
         copy.armor = this.armor;
+        copy.presentFields = this.presentFields;
         return copy;
     }
 }
@@ -18,14 +18,19 @@ import java.util.Objects;
 import java.util.Optional;
 
 public class PlayerStatusEffectsData extends FlagHolder<PlayerStatusEffectsData.FLAGS>
-    implements PlayerDataComponent {
+    implements DeltaComponent<PlayerStatusEffectsData> {
     // Maximum difference in remaining milliseconds before considering an effect duration "changed"
     private static final int MAX_REMAINING_MS_DIF = 500;
 
+    // Being frozen or on fire toggles far more often than effects, so the flags are sent separately
+    private static final int FLAGS_FIELD = 1, EFFECTS_FIELD = 1 << 1;
+    private static final int FIELD_COUNT = 2;
+
     public enum FLAGS { FROZEN, ON_FIRE }
 
     private long timestamp;
     private final List<StatusEffectEntry> effects = new ArrayList<>();
+    private int presentFields = (1 << FIELD_COUNT) - 1;
 
     public record StatusEffectEntry(RegistryEntry<StatusEffect> statusEffect, int amplifier, int duration) {
         public boolean isInfinite() { return duration == -1; }
@@ -82,56 +87,92 @@ public class PlayerStatusEffectsData extends FlagHolder<PlayerStatusEffectsData.
     public List<StatusEffectEntry> getAllEffects() { return new ArrayList<>(effects); }
 
     @Override
-    public void write(RegistryByteBuf buf) {
-        buf.writeLong(timestamp);
-        writeFlags(buf, 1);
-
-        buf.writeByte(effects.size()); // max 255
-        for (StatusEffectEntry e : effects) {
-            buf.writeVarInt(Registries.STATUS_EFFECT.getRawId(e.statusEffect.value()));
-            buf.writeByte(e.amplifier() & 0xFF);
-            buf.writeInt(e.duration());
+    public int getFieldCount() { return FIELD_COUNT; }
+    @Override
+    public int getPresentFields() { return presentFields; }
+    @Override
+    public void setPresentFields(int fieldMask) { this.presentFields = fieldMask; }
+
+    @Override
+    public int getChangedFields(PlayerStatusEffectsData baseline) {
+        int changed = 0;
+        if (!equalsFlags(baseline)) changed |= FLAGS_FIELD;
+        if (haveEffectsChanged(baseline)) changed |= EFFECTS_FIELD;
+        return changed;
+    }
+
+    private boolean haveEffectsChanged(PlayerStatusEffectsData other) {
+        if (this.effects.size() != other.effects.size()) return true;
+        for (int i = 0; i < this.effects.size(); i++) {
+            StatusEffectEntry thisEffect = this.effects.get(i);
+            StatusEffectEntry otherEffect = other.effects.get(i);
+
+            if (!Objects.equals(thisEffect.statusEffect(), otherEffect.statusEffect())
+                || thisEffect.amplifier() != otherEffect.amplifier()
+                || Math.abs(getEffectRemainingMs(thisEffect) - other.getEffectRemainingMs(otherEffect)) > MAX_REMAINING_MS_DIF) {
+                return true;
+            }
         }
+
+        return false;
     }
 
     @Override
-    public void read(RegistryByteBuf buf) {
-        this.timestamp = buf.readLong();
-        readFlags(buf, 1);
+    public void write(RegistryByteBuf buf) { writeDelta(buf); }
 
-        effects.clear();
-        int count = buf.readUnsignedByte();
-        for (int i = 0; i < count; i++) {
-            Optional<RegistryEntry.Reference<StatusEffect>> effectType = Registries.STATUS_EFFECT.getEntry(buf.readVarInt());
-            if (effectType.isEmpty()) continue;
+    @Override
+    public void read(RegistryByteBuf buf) { readDelta(buf); }
 
-            effects.add(new StatusEffectEntry(
-                effectType.get(),
-                buf.readUnsignedByte(),
-                buf.readInt()
-            ));
+    @Override
+    public void writeFields(RegistryByteBuf buf, int fieldMask) {
+        if ((fieldMask & FLAGS_FIELD) != 0) writeFlags(buf, 1);
+
+        if ((fieldMask & EFFECTS_FIELD) != 0) {
+            buf.writeLong(timestamp);
+            buf.writeByte(effects.size()); // max 255
+            for (StatusEffectEntry e : effects) {
+                buf.writeVarInt(Registries.STATUS_EFFECT.getRawId(e.statusEffect.value()));
+                buf.writeByte(e.amplifier() & 0xFF);
+                buf.writeInt(e.duration());
+            }
         }
     }
 
     @Override
-    public boolean hasChanged(PlayerDataComponent other) {
-        if (!(other instanceof PlayerStatusEffectsData otherStatus)) return true;
+    public void readFields(RegistryByteBuf buf, int fieldMask) {
+        if ((fieldMask & FLAGS_FIELD) != 0) readFlags(buf, 1);
 
-        if (!equalsFlags(otherStatus)) return true;
+        if ((fieldMask & EFFECTS_FIELD) != 0) {
+            this.timestamp = buf.readLong();
 
-        if (this.effects.size() != otherStatus.effects.size()) return true;
-        for (int i = 0; i < this.effects.size(); i++) {
-            StatusEffectEntry thisEffect = this.effects.get(i);
-            StatusEffectEntry otherEffect = otherStatus.effects.get(i);
+            effects.clear();
+            int count = buf.readUnsignedByte();
+            for (int i = 0; i < count; i++) {
+                Optional<RegistryEntry.Reference<StatusEffect>> effectType = Registries.STATUS_EFFECT.getEntry(buf.readVarInt());
+                int amplifier = buf.readUnsignedByte();
+                int duration = buf.readInt();
+                if (effectType.isEmpty()) continue;
 
-            if (!Objects.equals(thisEffect.statusEffect(), otherEffect.statusEffect())
-                || thisEffect.amplifier() != otherEffect.amplifier()
-                || Math.abs(getEffectRemainingMs(thisEffect) - otherStatus.getEffectRemainingMs(otherEffect)) > MAX_REMAINING_MS_DIF) {
-                return true;
+                effects.add(new StatusEffectEntry(effectType.get(), amplifier, duration));
             }
         }
+    }
 
-        return false;
+    @Override
+    public void copyFields(PlayerStatusEffectsData source, int fieldMask) {
+        if ((fieldMask & FLAGS_FIELD) != 0) setFlags(source.getFlags());
+
+        if ((fieldMask & EFFECTS_FIELD) != 0) {
+            this.timestamp = source.timestamp;
+            effects.clear();
+            effects.addAll(source.effects);
+        }
+    }
+
+    @Override
+    public boolean hasChanged(PlayerDataComponent other) {
+        if (!(other instanceof PlayerStatusEffectsData otherStatus)) return true;
+        return getChangedFields(otherStatus) != 0;
     }
 
     @Override
@@ -140,6 +181,7 @@ public class PlayerStatusEffectsData extends FlagHolder<PlayerStatusEffectsData.
         copy.timestamp = this.timestamp;
         copy.setFlags(this.getFlags());
         copy.effects.addAll(this.effects);
+        copy.presentFields = this.presentFields;
         return copy;
     }
 }